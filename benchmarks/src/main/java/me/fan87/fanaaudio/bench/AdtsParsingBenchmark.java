@@ -0,0 +1,62 @@
+package me.fan87.fanaaudio.bench;
+
+import me.fan87.fanaaudio.stream.AdtsFrameReader;
+import me.fan87.fanaaudio.stream.AdtsHeader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walking one second of ADTS frames (43 frames at 256 kbps), from a mapped-style buffer and from a stream
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AdtsParsingBenchmark {
+
+    private static final int FRAMES = 43;
+
+    private byte[] data;
+    private ByteBuffer direct;
+    private byte[] frameBuffer;
+
+    @Setup
+    public void setup() {
+        data = SyntheticAdts.stream(FRAMES, SyntheticAdts.FRAME_SIZE);
+        direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        frameBuffer = new byte[AdtsFrameReader.MAX_FRAME_SIZE];
+    }
+
+    @Benchmark
+    public long parseBuffer() {
+        long nanos = 0;
+        int offset = 0;
+        while (offset + AdtsFrameReader.HEADER_SIZE <= direct.limit()) {
+            AdtsHeader header = AdtsHeader.parse(direct, offset);
+            if (header == null) {
+                offset++;
+                continue;
+            }
+            nanos += header.getDurationNanos();
+            offset += header.getFrameLength();
+        }
+        return nanos;
+    }
+
+    @Benchmark
+    public long readStream() throws Exception {
+        AdtsFrameReader reader = new AdtsFrameReader(new ByteArrayInputStream(data));
+        long bytes = 0;
+        int length;
+        while ((length = reader.readFrame(frameBuffer)) != -1) {
+            bytes += length;
+        }
+        return bytes;
+    }
+}
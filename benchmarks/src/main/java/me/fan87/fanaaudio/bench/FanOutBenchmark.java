@@ -0,0 +1,74 @@
+package me.fan87.fanaaudio.bench;
+
+import me.fan87.fanaaudio.stream.Broadcast;
+import me.fan87.fanaaudio.stream.LaggardPolicy;
+import me.fan87.fanaaudio.stream.Listener;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishing one frame and delivering it to every listener, the way an I/O thread does. Sinks are in-memory
+ * channels that accept everything, so this measures the server side of the fan-out only
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({"1", "100", "10000"})
+    public int sinks;
+
+    private Broadcast broadcast;
+    private List<Listener> listeners;
+    private ByteBuffer scratch;
+    private byte[] frame;
+
+    @Setup
+    public void setup() {
+        broadcast = new Broadcast(512 * 1024);
+        listeners = new ArrayList<>();
+        for (int i = 0; i < sinks; i++) {
+            Listener listener = new Listener(new NullChannel(), new InetSocketAddress("127.0.0.1", 10000 + i % 50000), broadcast, 0, (closed) -> {});
+            broadcast.addListener(listener);
+            listeners.add(listener);
+        }
+        scratch = ByteBuffer.allocateDirect(64 * 1024);
+        frame = SyntheticAdts.frame(SyntheticAdts.FRAME_SIZE, 0);
+    }
+
+    @Benchmark
+    public void publishAndDeliver(Blackhole blackhole) throws Exception {
+        broadcast.publish(frame, 0, frame.length);
+        for (Listener listener : listeners) {
+            blackhole.consume(listener.drain(scratch, LaggardPolicy.SKIP_TO_LIVE_EDGE, 256 * 1024));
+        }
+    }
+
+    private static class NullChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer source) {
+            int remaining = source.remaining();
+            source.position(source.limit());
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package me.fan87.fanaaudio.bench;
+
+import me.fan87.fanaaudio.configs.Config;
+import me.fan87.fanaaudio.station.AudioStation;
+import me.fan87.fanaaudio.station.StationsManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering the station index page, the way every request to / does
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexRenderingBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int stations;
+
+    private Config config;
+    private List<AudioStation> list;
+
+    @Setup
+    public void setup() {
+        config = new Config();
+        list = new ArrayList<>();
+        for (int i = 0; i < stations; i++) {
+            list.add(new AudioStation("station" + i, "Station " + i, "owner"));
+        }
+    }
+
+    @Benchmark
+    public byte[] render() {
+        return StationsManager.renderIndex(config, list).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,153 @@
+package me.fan87.fanaaudio.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Listeners of the synthetic stream, all driven by one selector on the calling thread. They read and discard the
+ * audio, and remember how long it took until the first byte of it arrived.
+ */
+class LoadClients {
+
+    private static final byte[] HEAD_END = {'\r', '\n', '\r', '\n'};
+
+    private final int port;
+    private final Selector selector;
+    private final byte[] request = ("GET /synthetic/radio.aac HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final List<Client> clients = new ArrayList<>();
+    private long totalBytes = 0;
+
+    LoadClients(int port) throws IOException {
+        this.port = port;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Start connecting more listeners
+     * @param count Amount of listeners. Keep it small (A few hundred), so the accept backlog never overflows
+     */
+    void open(int count) {
+        for (int i = 0; i < count; i++) {
+            Client client = new Client();
+            clients.add(client);
+            try {
+                client.channel = SocketChannel.open();
+                client.channel.configureBlocking(false);
+                client.startNanos = System.nanoTime();
+                client.channel.connect(new InetSocketAddress("127.0.0.1", port));
+                client.channel.register(selector, SelectionKey.OP_CONNECT, client);
+            } catch (IOException e) {
+                client.failed = true;
+            }
+        }
+    }
+
+    /**
+     * Handle whatever is ready
+     * @param timeoutMillis How long to wait if nothing is
+     */
+    void poll(long timeoutMillis) throws IOException {
+        selector.select(timeoutMillis);
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            Client client = (Client) key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    client.channel.finishConnect();
+                    client.channel.write(ByteBuffer.wrap(request));
+                    key.interestOps(SelectionKey.OP_READ);
+                } else if (key.isReadable()) {
+                    readBuffer.clear();
+                    int read = client.channel.read(readBuffer);
+                    if (read == -1) {
+                        key.cancel();
+                        client.channel.close();
+                        client.failed = true;
+                        continue;
+                    }
+                    readBuffer.flip();
+                    if (!client.headDone) {
+                        int head = client.findBody(readBuffer);
+                        if (head == -1) continue;
+                        client.headDone = true;
+                        read -= head;
+                    }
+                    if (read > 0 && client.firstByteNanos == 0) client.firstByteNanos = System.nanoTime();
+                    totalBytes += read;
+                }
+            } catch (IOException e) {
+                key.cancel();
+                client.failed = true;
+            }
+        }
+    }
+
+    /**
+     * Keep handling the listeners for a while
+     * @param millis Duration
+     */
+    void run(long millis) throws IOException {
+        long end = System.nanoTime() + millis * 1_000_000L;
+        while (System.nanoTime() < end) {
+            poll(10);
+        }
+    }
+
+    int size() {
+        return clients.size();
+    }
+
+    long getTotalBytes() {
+        return totalBytes;
+    }
+
+    long getFailures() {
+        return clients.stream().filter((client) -> client.failed).count();
+    }
+
+    /**
+     * Get the time to first audio byte of every listener that has received audio
+     * @return Sorted latencies in nanoseconds
+     */
+    long[] getLatencies() {
+        return clients.stream().filter((client) -> client.firstByteNanos != 0).mapToLong((client) -> client.firstByteNanos - client.startNanos).sorted().toArray();
+    }
+
+    static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+    }
+
+    private static class Client {
+        private SocketChannel channel;
+        private long startNanos;
+        private long firstByteNanos = 0;
+        private int matched = 0;
+        private boolean headDone = false;
+        private boolean failed = false;
+
+        /**
+         * Skip the response head
+         * @return Amount of head bytes in the buffer (The rest is body), or -1 if the head hasn't ended yet
+         */
+        private int findBody(ByteBuffer buffer) {
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                matched = buffer.get(i) == HEAD_END[matched] ? matched + 1 : (buffer.get(i) == '\r' ? 1 : 0);
+                if (matched == HEAD_END.length) {
+                    return i + 1 - buffer.position();
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package me.fan87.fanaaudio.bench;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless end-to-end load test. Starts the server on loopback with a synthetic ADTS source paced at real-time rate,
+ * connects N listeners from a single selector thread, and reports latency to first audio byte and sustained
+ * throughput. Run it from an empty directory (It writes config.json and cache/ there):
+ * <pre>java -cp benchmarks.jar me.fan87.fanaaudio.bench.LoadHarness [listeners] [seconds]</pre>
+ * Thousands of listeners need a raised file descriptor limit (ulimit -n).
+ */
+public class LoadHarness {
+
+    public static void main(String[] args) throws Exception {
+        int listeners = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        SyntheticServer server = SyntheticServer.start();
+
+        LoadClients clients = new LoadClients(server.port);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long measureFrom = start + (end - start) / 4; // Skip the ramp up
+        long bytesAtMeasureStart = -1;
+        while (System.nanoTime() < end) {
+            clients.open(Math.min(200, listeners - clients.size())); // Ramp up in small batches, so the accept backlog never overflows
+            if (bytesAtMeasureStart == -1 && System.nanoTime() >= measureFrom) {
+                bytesAtMeasureStart = clients.getTotalBytes();
+            }
+            clients.poll(10);
+        }
+        long measured = clients.getTotalBytes() - Math.max(0, bytesAtMeasureStart);
+        double measuredSeconds = (end - measureFrom) / 1e9;
+
+        long[] latencies = clients.getLatencies();
+        System.out.println("Listeners:          " + listeners + " (" + clients.getFailures() + " failed, " + latencies.length + " received audio)");
+        if (latencies.length > 0) {
+            System.out.printf("Time to first byte: p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                    LoadClients.percentile(latencies, 0.5) / 1e6, LoadClients.percentile(latencies, 0.9) / 1e6, LoadClients.percentile(latencies, 0.99) / 1e6, latencies[latencies.length - 1] / 1e6);
+        }
+        double expected = SyntheticAdts.FRAME_SIZE * 8.0 / (SyntheticAdts.FRAME_NANOS / 1e9) / 1000;
+        System.out.printf("Throughput:         %.2f MiB/s total, %.1f kbps per listener (Source is %.1f kbps)%n",
+                measured / measuredSeconds / 1024 / 1024, measured * 8.0 / measuredSeconds / 1000 / Math.max(1, latencies.length), expected);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,73 @@
+package me.fan87.fanaaudio.bench;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory stress test. Adds listeners to the synthetic stream in steps, holds every step for a while, and reports the
+ * retained heap (After a full collection) and the GC pauses of each step. The heap should grow by a small constant
+ * per listener, and pauses should stay under the target. Run it from an empty directory, with a fixed heap so the
+ * numbers are comparable:
+ * <pre>java -Xms512m -Xmx512m -cp benchmarks.jar me.fan87.fanaaudio.bench.MemoryHarness [steps] [seconds per step] [pause target ms]</pre>
+ * Steps default to 100,1000,5000,20000. The listeners run in the same process, so their sockets count too, and
+ * 20k listeners need ulimit -n of at least 45000.
+ */
+public class MemoryHarness {
+
+    public static void main(String[] args) throws Exception {
+        String[] steps = (args.length > 0 ? args[0] : "100,1000,5000,20000").split(",");
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long targetMillis = args.length > 2 ? Long.parseLong(args[2]) : 50;
+
+        AtomicLong maxPause = new AtomicLong();
+        AtomicLong pauses = new AtomicLong();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector.getName().contains("Concurrent")) continue; // Runs beside the application, not a pause
+            ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) return;
+                GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                if (info.getGcCause().equals("System.gc()")) return; // Ours, for measuring
+                pauses.incrementAndGet();
+                maxPause.accumulateAndGet(info.getGcInfo().getDuration(), Math::max);
+            }, null, null);
+        }
+
+        SyntheticServer server = SyntheticServer.start();
+        LoadClients clients = new LoadClients(server.port);
+        long baseline = retainedHeap();
+        boolean passed = true;
+        System.out.printf("%10s %10s %14s %16s %10s %14s %12s%n", "Listeners", "Failed", "Heap (MiB)", "Per listener", "Pauses", "Max pause", "kbps each");
+        for (String step : steps) {
+            int target = Integer.parseInt(step.trim());
+            while (clients.size() < target) {
+                clients.open(Math.min(200, target - clients.size()));
+                clients.poll(10);
+            }
+            clients.run(2000); // Let the ramp up settle
+            pauses.set(0);
+            maxPause.set(0);
+            long bytesBefore = clients.getTotalBytes();
+            long start = System.nanoTime();
+            clients.run(seconds * 1000L);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            long received = clients.getLatencies().length;
+            double kbps = (clients.getTotalBytes() - bytesBefore) * 8.0 / elapsed / 1000 / Math.max(1, received);
+            long heap = retainedHeap();
+            System.out.printf("%10d %10d %14.1f %14d B %10d %11d ms %12.1f%n", target, clients.getFailures(), heap / 1024.0 / 1024, (heap - baseline) / Math.max(1, target), pauses.get(), maxPause.get(), kbps);
+            if (maxPause.get() > targetMillis) passed = false;
+        }
+        System.out.println(passed ? "GC pauses stayed under " + targetMillis + " ms" : "GC pauses exceeded " + targetMillis + " ms");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static long retainedHeap() throws InterruptedException {
+        System.gc();
+        Thread.sleep(200);
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,56 @@
+package me.fan87.fanaaudio.bench;
+
+import me.fan87.fanaaudio.stream.StreamBuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One writer publishing frames into the ring while many readers copy out of it concurrently
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RingContentionBenchmark {
+
+    private StreamBuffer buffer;
+    private byte[] frame;
+
+    @State(Scope.Thread)
+    public static class Reader {
+        long position = 0;
+        ByteBuffer view = null;
+        ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+    }
+
+    @Setup
+    public void setup() {
+        buffer = new StreamBuffer(512 * 1024);
+        frame = SyntheticAdts.frame(SyntheticAdts.FRAME_SIZE, 0);
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public void write() {
+        buffer.write(frame, 0, frame.length);
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(7)
+    public int read(Reader reader) {
+        if (reader.view == null) reader.view = buffer.newReadView();
+        int read = buffer.read(reader.position, reader.view, reader.scratch);
+        if (read == -1) {
+            reader.position = buffer.alignToFrame(buffer.getOldestPosition()); // Lapped by the writer
+            return 0;
+        }
+        reader.position += read;
+        return read;
+    }
+}
@@ -0,0 +1,59 @@
+package me.fan87.fanaaudio.bench;
+
+/**
+ * Generates ADTS frames that parse like real AAC LC frames (44.1 kHz stereo, 1024 samples), with filler as payload
+ */
+public class SyntheticAdts {
+
+    /**
+     * Size of a frame at 256 kbps (1024 samples at 44.1 kHz)
+     */
+    public static final int FRAME_SIZE = 743;
+
+    /**
+     * Play time of a frame in nanoseconds
+     */
+    public static final long FRAME_NANOS = 1024 * 1_000_000_000L / 44100;
+
+    /**
+     * Create a single frame
+     * @param length Frame length including the header
+     * @param filler Payload byte
+     * @return The frame
+     */
+    public static byte[] frame(int length, int filler) {
+        byte[] frame = new byte[length];
+        writeHeader(frame, 0, length);
+        for (int i = 7; i < length; i++) {
+            frame[i] = (byte) filler;
+        }
+        return frame;
+    }
+
+    /**
+     * Create a stream of consecutive frames
+     * @param count Amount of frames
+     * @param length Length of each frame
+     * @return The stream
+     */
+    public static byte[] stream(int count, int length) {
+        byte[] data = new byte[count * length];
+        for (int i = 0; i < count; i++) {
+            writeHeader(data, i * length, length);
+            for (int j = 7; j < length; j++) {
+                data[i * length + j] = (byte) i;
+            }
+        }
+        return data;
+    }
+
+    private static void writeHeader(byte[] target, int offset, int length) {
+        target[offset] = (byte) 0xFF;
+        target[offset + 1] = (byte) 0xF1; // MPEG-4, no CRC
+        target[offset + 2] = (byte) ((1 << 6) | (4 << 2)); // AAC LC, 44.1 kHz
+        target[offset + 3] = (byte) ((2 << 6) | (length >>> 11)); // Stereo
+        target[offset + 4] = (byte) (length >>> 3);
+        target[offset + 5] = (byte) (((length & 7) << 5) | 0x1F);
+        target[offset + 6] = (byte) 0xFC; // One raw data block
+    }
+}
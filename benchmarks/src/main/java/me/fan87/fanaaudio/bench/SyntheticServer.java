@@ -0,0 +1,53 @@
+package me.fan87.fanaaudio.bench;
+
+import me.fan87.fanaaudio.FANARadio;
+import me.fan87.fanaaudio.stream.Broadcast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A FANARadio on loopback with a synthetic ADTS source paced at real-time rate on /synthetic/radio.aac, for the
+ * harnesses. Must be started from an empty directory (It writes config.json and cache/ there).
+ */
+class SyntheticServer {
+
+    final FANARadio radio;
+    final Broadcast broadcast;
+    final int port;
+
+    private SyntheticServer(FANARadio radio, Broadcast broadcast, int port) {
+        this.radio = radio;
+        this.broadcast = broadcast;
+        this.port = port;
+    }
+
+    static SyntheticServer start() throws IOException {
+        File config = new File("config.json");
+        if (config.exists()) {
+            System.err.println("config.json already exists. Run the harness from an empty directory");
+            System.exit(1);
+        }
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        try (FileOutputStream output = new FileOutputStream(config)) {
+            output.write(("{\"ip\": \"127.0.0.1\", \"publicPort\": " + port + ", \"stations\": []}").getBytes(StandardCharsets.UTF_8));
+        }
+
+        FANARadio radio = new FANARadio();
+        Broadcast broadcast = new Broadcast(512 * 1024);
+        radio.getServer().createContext("/synthetic/", (exchange) -> {
+            exchange.getResponseHeaders().put("Content-Type", "audio/aac");
+            exchange.stream(broadcast, broadcast.getBuffer().getWritePosition(), (listener) -> {});
+        });
+        byte[] frame = SyntheticAdts.frame(SyntheticAdts.FRAME_SIZE, 0);
+        radio.getScheduler().scheduleAtFixedRate(() -> broadcast.publish(frame, 0, frame.length), 0, SyntheticAdts.FRAME_NANOS, TimeUnit.NANOSECONDS);
+        return new SyntheticServer(radio, broadcast, port);
+    }
+}
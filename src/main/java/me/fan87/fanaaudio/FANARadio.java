@@ -1,10 +1,12 @@
 package me.fan87.fanaaudio;
 
-import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
-import com.sun.net.httpserver.HttpServer;
+import me.fan87.fanaaudio.configs.Config;
 import me.fan87.fanaaudio.configs.ConfigsManager;
+import me.fan87.fanaaudio.metrics.MetricsExporter;
+import me.fan87.fanaaudio.server.StreamingServer;
 import me.fan87.fanaaudio.station.StationsManager;
+import me.fan87.fanaaudio.stream.SegmentStore;
+import me.fan87.fanaaudio.transcode.TranscodeService;
 import org.apache.log4j.Logger;
 
 import javax.sound.sampled.AudioFormat;
@@ -14,7 +16,11 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.Scanner;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FANARadio {
 
@@ -27,9 +33,13 @@ public class FANARadio {
 
     private ConfigsManager configsManager;
     private StationsManager stationsManager;
+    private TranscodeService transcodeService;
+    private SegmentStore segmentStore;
+    private ScheduledExecutorService scheduler;
+    private MetricsExporter metricsExporter;
 
     private final Logger logger;
-    private HttpServer server = null;
+    private StreamingServer server = null;
 
 
 
@@ -39,25 +49,62 @@ public class FANARadio {
         this.configsManager = new ConfigsManager();
         try {
             logger.info("Creating Server Instance...");
-            server = HttpServer.create(new InetSocketAddress(configsManager.getConfig().ip, configsManager.getConfig().publicPort), 0);
+            server = new StreamingServer(this, new InetSocketAddress(configsManager.getConfig().ip, configsManager.getConfig().publicPort), configsManager.getConfig().ioThreads, configsManager.getConfig().handlerThreads);
         } catch (Exception e) {
             e.printStackTrace();
             logger.error(String.format("Something went wrong while binding Public Http Server to %s. Is port already in use?", (configsManager.getConfig().ip + ":" + configsManager.getConfig().publicPort.toString())));
             System.exit(-1);
         }
+        AtomicInteger counter = new AtomicInteger();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(Math.max(1, configsManager.getConfig().playoutThreads), (runnable) -> {
+            Thread thread = new Thread(runnable, "Playout Thread #" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        scheduler = executor;
+        logger.info("Starting Transcode Service...");
+        transcodeService = new TranscodeService(this, configsManager.getConfig().transcodeThreads);
+        segmentStore = new SegmentStore(this);
         logger.info("Initializing Stations Manager...");
         stationsManager = new StationsManager(this);
+        metricsExporter = new MetricsExporter(this);
         logger.info("Starting HTTP Server..");
         server.start();
+        configsManager.watch(this::onConfigReload);
 
     }
 
+    /**
+     * Apply a config that has been changed on disk. Runs on the config watcher thread, never on the serving threads
+     * @param previous The config before the reload
+     */
+    private void onConfigReload(Config previous) {
+        Config config = configsManager.getConfig();
+        logger.info("Config has been changed, reloading...");
+        if (!Objects.equals(previous.ip, config.ip) || !Objects.equals(previous.publicPort, config.publicPort)
+                || !Objects.equals(previous.ioThreads, config.ioThreads) || !Objects.equals(previous.handlerThreads, config.handlerThreads)
+                || !Objects.equals(previous.transcodeThreads, config.transcodeThreads) || !Objects.equals(previous.playoutThreads, config.playoutThreads)) {
+            logger.warn("The address, the port and the thread counts can't be changed while running. Restart to apply them");
+        }
+        if (!Objects.equals(previous.hlsSegmentSeconds, config.hlsSegmentSeconds) || !Objects.equals(previous.hlsWindowSize, config.hlsWindowSize)) {
+            logger.warn("HLS settings only apply to stations that are (re)started");
+        }
+        if (config.listenerQueueSize > previous.listenerQueueSize) {
+            logger.warn("A larger listener queue size only applies fully to stations that are (re)started, their stream buffers are sized on start");
+        }
+        if (!Objects.equals(previous.archiveHours, config.archiveHours) || !Objects.equals(previous.dvrWindowMinutes, config.dvrWindowMinutes)) {
+            logger.warn("Archive settings only apply to stations that are (re)started");
+        }
+        stationsManager.reload(this);
+    }
+
 
     /**
-     * Get the HttpServer you can control
+     * Get the HTTP server you can control
      * @return HTTP Server instance
      */
-    public HttpServer getServer() {
+    public StreamingServer getServer() {
         return server;
     }
 
@@ -77,6 +124,38 @@ public class FANARadio {
         return stationsManager;
     }
 
+    /**
+     * Get the transcode service
+     * @return The transcode service
+     */
+    public TranscodeService getTranscodeService() {
+        return transcodeService;
+    }
+
+    /**
+     * Get the segment store (Memory-mapped segments for playout)
+     * @return The segment store
+     */
+    public SegmentStore getSegmentStore() {
+        return segmentStore;
+    }
+
+    /**
+     * Get the scheduler shared by the playout of all stations. Tasks must never block
+     * @return The scheduler
+     */
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Get the metrics exporter (/metrics)
+     * @return The metrics exporter
+     */
+    public MetricsExporter getMetricsExporter() {
+        return metricsExporter;
+    }
+
     /**
      * Get the logger
      * @return The logger
@@ -3,6 +3,7 @@ package me.fan87.fanaaudio.configs;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
 import me.fan87.fanaaudio.station.AudioStation;
+import me.fan87.fanaaudio.stream.LaggardPolicy;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -26,9 +27,66 @@ public class Config {
     @Expose
     public Boolean shuffle = true;
 
+    @Expose
+    public Integer noRepeatWindow = 10;
+
     @Expose
     public Boolean debug = false;
 
+    @Expose
+    public Integer ioThreads = Runtime.getRuntime().availableProcessors();
+
+    @Expose
+    public Integer handlerThreads = 8;
+
+    @Expose
+    public Integer requestTimeoutMillis = 10000;
+
+    @Expose
+    public Integer idleTimeoutMillis = 30000;
+
+    @Expose
+    public Integer transcodeThreads = Runtime.getRuntime().availableProcessors();
+
+    @Expose
+    public Integer playoutThreads = 2;
+
+    @Expose
+    public Integer transcodeLookahead = 3;
+
+    @Expose
+    public Long cacheMaxBytes = 10L * 1024 * 1024 * 1024;
+
+    @Expose
+    public Long segmentStoreBytes = 256L * 1024 * 1024;
+
+    @Expose
+    public Integer listenerQueueSize = 256 * 1024;
+
+    @Expose
+    public Integer maxListenersPerStation = 20000;
+
+    @Expose
+    public Long maxBufferBytes = 256L * 1024 * 1024;
+
+    @Expose
+    public Integer burstMillis = 3000;
+
+    @Expose
+    public Integer hlsSegmentSeconds = 4;
+
+    @Expose
+    public Integer hlsWindowSize = 5;
+
+    @Expose
+    public Integer archiveHours = 0;
+
+    @Expose
+    public Integer dvrWindowMinutes = 60;
+
+    @Expose
+    public LaggardPolicy laggardPolicy = LaggardPolicy.SKIP_TO_LIVE_EDGE;
+
     @Expose
     public String radioIndexSubtitle = "Station not found! Here's all available stations:";
 
@@ -6,10 +6,14 @@ import com.google.gson.GsonBuilder;
 import java.io.*;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class ConfigsManager {
 
-    private Config config;
+    private volatile Config config;
+    private String lastText = null;
     private final File configFile = new File("config.json");
     private final Gson gson = new GsonBuilder()
             .setPrettyPrinting()
@@ -36,29 +40,97 @@ public class ConfigsManager {
         try {
             if (configFile.isDirectory()) configFile.delete();
             if (!configFile.exists()) configFile.createNewFile();
-            this.config = gson.fromJson(new FileReader(configFile), Config.class);
-            if (this.config == null) {
-                this.config = new Config();
+            this.config = parse(new String(Files.readAllBytes(configFile.toPath()), StandardCharsets.UTF_8));
+            saveConfig();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Config parse(String text) throws IllegalAccessException {
+        Config config = gson.fromJson(text, Config.class);
+        if (config == null) {
+            config = new Config();
+        }
+        for (Field field : Config.class.getFields()) {
+            if (field.get(config) == null) {
+                field.set(config, field.get(new Config()));
             }
-            for (Field field : Config.class.getFields()) {
-                if (field.get(this.config) == null) {
-                    field.set(this.config, field.get(new Config()));
+        }
+        return config;
+    }
+
+    /**
+     * Watch the configuration file, and reload it whenever it's changed. Runs on its own thread, the handler is
+     * called on it too
+     * @param reloadHandler Called after the config has been reloaded, with the previous config
+     */
+    public void watch(Consumer<Config> reloadHandler) {
+        Thread thread = new Thread(() -> {
+            try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+                Path folder = configFile.getAbsoluteFile().getParentFile().toPath();
+                folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                while (true) {
+                    WatchKey key = watchService.take();
+                    boolean changed = isConfigEvent(key);
+                    WatchKey next;
+                    while ((next = watchService.poll(500, TimeUnit.MILLISECONDS)) != null) { // Editors write in several steps, wait until it's quiet
+                        changed |= isConfigEvent(next);
+                    }
+                    if (changed) {
+                        Config previous = reloadConfig();
+                        if (previous != null) reloadHandler.accept(previous);
+                    }
                 }
+            } catch (InterruptedException ignored) {
+            } catch (Exception e) {
+                e.printStackTrace();
             }
-            saveConfig();
+        }, "Config Watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private boolean isConfigEvent(WatchKey key) {
+        boolean matched = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.context() instanceof Path && ((Path) event.context()).getFileName().toString().equals(configFile.getName())) {
+                matched = true;
+            }
+        }
+        key.reset();
+        return matched;
+    }
+
+    /**
+     * Read the configuration file again if it has been changed. Unlike {@link #loadConfig()}, the file is never
+     * written, and a broken file keeps the current config
+     * @return The previous config, or null if nothing has changed
+     */
+    public synchronized Config reloadConfig() {
+        try {
+            String text = new String(Files.readAllBytes(configFile.toPath()), StandardCharsets.UTF_8);
+            if (text.equals(lastText)) return null; // Written by us, or saved without changes
+            Config parsed = parse(text);
+            lastText = text;
+            Config previous = this.config;
+            this.config = parsed;
+            return previous;
         } catch (Exception e) {
             e.printStackTrace();
+            return null;
         }
     }
 
     /**
      * Save the configuration file
      */
-    public void saveConfig() {
+    public synchronized void saveConfig() {
         try {
             FileOutputStream fileOutputStream = new FileOutputStream(configFile);
             BufferedOutputStream outputStream = new BufferedOutputStream(fileOutputStream);
-            outputStream.write(gson.toJson(this.config).getBytes(StandardCharsets.UTF_8));
+            lastText = gson.toJson(this.config);
+            outputStream.write(lastText.getBytes(StandardCharsets.UTF_8));
             outputStream.flush();
             outputStream.close();
         } catch (Exception e) {
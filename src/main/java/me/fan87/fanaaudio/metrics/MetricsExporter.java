@@ -0,0 +1,185 @@
+package me.fan87.fanaaudio.metrics;
+
+import me.fan87.fanaaudio.FANARadio;
+import me.fan87.fanaaudio.station.AudioStation;
+import me.fan87.fanaaudio.station.Rendition;
+import me.fan87.fanaaudio.stream.Broadcast;
+import me.fan87.fanaaudio.stream.Listener;
+import me.fan87.fanaaudio.transcode.TrackCache;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Serves /metrics in the Prometheus text format. The hot paths only bump lock-free counters
+ * ({@link java.util.concurrent.atomic.LongAdder}), everything else (Listener lag, JVM stats) is collected when it's
+ * scraped.
+ */
+public class MetricsExporter {
+
+    private static final long[] LAG_BUCKETS = {1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+
+    private final FANARadio radio;
+    private Map<Long, Long> threadAllocations = new HashMap<>(); // Allocated bytes of every live thread at the last scrape
+    private long allocatedBytes = 0;
+
+    public MetricsExporter(FANARadio radio) {
+        this.radio = radio;
+        radio.getServer().createContext("/metrics", (exchange) -> {
+            exchange.getResponseHeaders().put("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.getResponseHeaders().put("Cache-Control", "no-cache");
+            exchange.send(200, render().getBytes(StandardCharsets.UTF_8));
+        });
+    }
+
+    /**
+     * Collect and render every metric
+     * @return Metrics in the Prometheus text format
+     */
+    public String render() {
+        StringBuilder builder = new StringBuilder();
+        List<AudioStation> stations = radio.getStationsManager().stations;
+
+        header(builder, "fanaradio_listeners", "gauge", "Listeners connected to the stream");
+        forEachBroadcast(stations, (labels, broadcast) -> sample(builder, "fanaradio_listeners", labels, broadcast.getListeners().size()));
+        header(builder, "fanaradio_frames_published_total", "counter", "Frames published by the playout");
+        forEachBroadcast(stations, (labels, broadcast) -> sample(builder, "fanaradio_frames_published_total", labels, broadcast.getPublishedFrames()));
+        header(builder, "fanaradio_bytes_published_total", "counter", "Bytes published by the playout");
+        forEachBroadcast(stations, (labels, broadcast) -> sample(builder, "fanaradio_bytes_published_total", labels, broadcast.getBuffer().getWritePosition()));
+        header(builder, "fanaradio_bytes_delivered_total", "counter", "Bytes sent to listeners, all listeners combined");
+        forEachBroadcast(stations, (labels, broadcast) -> sample(builder, "fanaradio_bytes_delivered_total", labels, broadcast.getDeliveredBytes()));
+        header(builder, "fanaradio_bytes_dropped_total", "counter", "Bytes skipped because listeners were too slow");
+        forEachBroadcast(stations, (labels, broadcast) -> sample(builder, "fanaradio_bytes_dropped_total", labels, broadcast.getDroppedBytes()));
+
+        header(builder, "fanaradio_listener_lag_bytes", "histogram", "Bytes queued for each listener (Distance from the live edge)");
+        forEachBroadcast(stations, (labels, broadcast) -> {
+            long head = broadcast.getBuffer().getWritePosition();
+            long[] counts = new long[LAG_BUCKETS.length];
+            long sum = 0;
+            long total = 0;
+            for (Listener listener : broadcast.getListeners()) {
+                long lag = Math.max(0, head - listener.getPosition());
+                for (int i = 0; i < LAG_BUCKETS.length; i++) {
+                    if (lag <= LAG_BUCKETS[i]) counts[i]++;
+                }
+                sum += lag;
+                total++;
+            }
+            for (int i = 0; i < LAG_BUCKETS.length; i++) {
+                sample(builder, "fanaradio_listener_lag_bytes_bucket", labels + ",le=\"" + LAG_BUCKETS[i] + "\"", counts[i]);
+            }
+            sample(builder, "fanaradio_listener_lag_bytes_bucket", labels + ",le=\"+Inf\"", total);
+            sample(builder, "fanaradio_listener_lag_bytes_sum", labels, sum);
+            sample(builder, "fanaradio_listener_lag_bytes_count", labels, total);
+        });
+
+        header(builder, "fanaradio_watchdog_skips_total", "counter", "Tracks skipped by the watchdog because nothing was sent");
+        for (AudioStation station : stations) {
+            sample(builder, "fanaradio_watchdog_skips_total", "station=\"" + escape(station.namespace) + "\"", station.getWatchdogSkips());
+        }
+        header(builder, "fanaradio_track_errors_total", "counter", "Tracks abandoned because they couldn't be prepared or read");
+        for (AudioStation station : stations) {
+            sample(builder, "fanaradio_track_errors_total", "station=\"" + escape(station.namespace) + "\"", station.getTrackErrors());
+        }
+
+        header(builder, "fanaradio_stream_buffer_bytes", "gauge", "Off-heap memory of the stream buffers");
+        for (AudioStation station : stations) {
+            sample(builder, "fanaradio_stream_buffer_bytes", "station=\"" + escape(station.namespace) + "\"", station.getBufferBytes());
+        }
+
+        TrackCache cache = radio.getTranscodeService().getCache();
+        header(builder, "fanaradio_cache_hits_total", "counter", "Transcode cache lookups that found an entry");
+        sample(builder, "fanaradio_cache_hits_total", null, cache.getHits());
+        header(builder, "fanaradio_cache_misses_total", "counter", "Transcode cache lookups that had to transcode");
+        sample(builder, "fanaradio_cache_misses_total", null, cache.getMisses());
+        header(builder, "fanaradio_cache_entries", "gauge", "Entries in the transcode cache");
+        sample(builder, "fanaradio_cache_entries", null, cache.getEntryCount());
+        header(builder, "fanaradio_cache_bytes", "gauge", "Size of the transcode cache");
+        sample(builder, "fanaradio_cache_bytes", null, cache.getSize());
+        header(builder, "fanaradio_transcode_queue_length", "gauge", "Transcodes waiting for a worker");
+        sample(builder, "fanaradio_transcode_queue_length", null, radio.getTranscodeService().getQueueLength());
+        header(builder, "fanaradio_transcodes_total", "counter", "FFmpeg processes started");
+        sample(builder, "fanaradio_transcodes_total", null, radio.getTranscodeService().getTranscodeCount());
+        header(builder, "fanaradio_transcode_failures_total", "counter", "Tracks that couldn't be prepared");
+        sample(builder, "fanaradio_transcode_failures_total", null, radio.getTranscodeService().getFailureCount());
+        header(builder, "fanaradio_segment_store_bytes", "gauge", "Size of the memory-mapped segments");
+        sample(builder, "fanaradio_segment_store_bytes", null, radio.getSegmentStore().getSize());
+
+        renderJvm(builder);
+        return builder.toString();
+    }
+
+    private void renderJvm(StringBuilder builder) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemoryEnabled()) {
+            header(builder, "jvm_allocated_bytes_total", "counter", "Bytes allocated on the heap, as seen by scrapes (Take the rate for the allocation rate)");
+            sample(builder, "jvm_allocated_bytes_total", null, collectAllocatedBytes((com.sun.management.ThreadMXBean) threads));
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        header(builder, "jvm_heap_used_bytes", "gauge", "Used heap");
+        sample(builder, "jvm_heap_used_bytes", null, heap.getUsed());
+        header(builder, "jvm_heap_committed_bytes", "gauge", "Committed heap");
+        sample(builder, "jvm_heap_committed_bytes", null, heap.getCommitted());
+        header(builder, "jvm_gc_collections_total", "counter", "Garbage collections");
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(builder, "jvm_gc_collections_total", "gc=\"" + escape(collector.getName()) + "\"", collector.getCollectionCount());
+        }
+        header(builder, "jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collections");
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            builder.append("jvm_gc_collection_seconds_total{gc=\"").append(escape(collector.getName())).append("\"} ").append(collector.getCollectionTime() / 1000.0).append('\n');
+        }
+        header(builder, "jvm_threads", "gauge", "Live threads");
+        sample(builder, "jvm_threads", null, threads.getThreadCount());
+    }
+
+    /**
+     * Add up what every thread has allocated since the last scrape. Threads that have died are just left out, so the
+     * total never goes down (It misses what a thread allocated between the last scrape and its end)
+     * @return Running total in bytes
+     */
+    private synchronized long collectAllocatedBytes(com.sun.management.ThreadMXBean threads) {
+        long[] ids = threads.getAllThreadIds();
+        long[] allocated = threads.getThreadAllocatedBytes(ids);
+        Map<Long, Long> current = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (allocated[i] < 0) continue; // Died in the meantime
+            allocatedBytes += Math.max(0, allocated[i] - threadAllocations.getOrDefault(ids[i], 0L));
+            current.put(ids[i], allocated[i]);
+        }
+        threadAllocations = current;
+        return allocatedBytes;
+    }
+
+    private void forEachBroadcast(List<AudioStation> stations, BiConsumer<String, Broadcast> consumer) {
+        for (AudioStation station : stations) {
+            List<Rendition> renditions = station.getRenditions();
+            for (int i = 0; i < renditions.size(); i++) {
+                Broadcast broadcast = station.getBroadcast(i);
+                if (broadcast == null) continue;
+                consumer.accept("station=\"" + escape(station.namespace) + "\",rendition=\"" + escape(renditions.get(i).name) + "\"", broadcast);
+            }
+        }
+    }
+
+    private static void header(StringBuilder builder, String name, String type, String help) {
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder builder, String name, String labels, long value) {
+        builder.append(name);
+        if (labels != null) builder.append('{').append(labels).append('}');
+        builder.append(' ').append(value).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
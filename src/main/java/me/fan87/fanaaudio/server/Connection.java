@@ -0,0 +1,309 @@
+package me.fan87.fanaaudio.server;
+
+import me.fan87.fanaaudio.configs.Config;
+import me.fan87.fanaaudio.stream.Listener;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+
+/**
+ * A client connection. Everything except {@link #respond(boolean, ByteBuffer...)} and
+ * {@link #stream(ByteBuffer, Listener)} must only be called by the I/O thread that owns it
+ * <p>
+ * A connection that isn't a listener is closed if its request head takes longer than requestTimeoutMillis to arrive,
+ * or if it sits idle for idleTimeoutMillis, either kept alive without sending anything, or not reading its response.
+ */
+class Connection {
+
+    private static final int MAX_REQUEST_SIZE = 16 * 1024;
+
+    private final IoWorker worker;
+    private final SocketChannel channel;
+    private final InetSocketAddress remoteAddress;
+    private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+    private FileChannel file = null;
+    private long filePosition = 0;
+    private long fileEnd = 0;
+    private SelectionKey key;
+    private ByteBuffer requestBuffer = null;
+    private Listener listener = null;
+    private boolean keepAlive = false;
+    private boolean closed = false;
+    private boolean idle = false; // Kept alive, waiting for the next request
+    private long deadline = Long.MAX_VALUE; // Monotonic time in milliseconds the connection is closed at, unless it makes progress
+
+    Connection(IoWorker worker, SocketChannel channel) throws IOException {
+        this.worker = worker;
+        this.channel = channel;
+        this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+    }
+
+    void register() throws IOException {
+        key = channel.register(worker.getSelector(), SelectionKey.OP_READ, this);
+        deadline = now() + getConfig().requestTimeoutMillis;
+    }
+
+    /**
+     * Close the connection if it has missed its deadline. Listeners have none, they're handled by the laggard policy
+     * @param now Current monotonic time in milliseconds
+     */
+    void checkTimeout(long now) {
+        if (!closed && now >= deadline) close();
+    }
+
+    static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    private Config getConfig() {
+        return worker.getServer().getRadio().getConfigsManager().getConfig();
+    }
+
+    void onReadable() {
+        try {
+            if (listener != null) {
+                ByteBuffer scratch = worker.getScratch();
+                scratch.clear();
+                if (channel.read(scratch) == -1) close(); // Listeners don't send anything, only check for disconnection
+                return;
+            }
+            if (requestBuffer == null) requestBuffer = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+            int read = channel.read(requestBuffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+            if (read > 0 && idle) { // The next request has started, its head must arrive in time. Trickling doesn't extend it
+                idle = false;
+                deadline = now() + getConfig().requestTimeoutMillis;
+            }
+            processRequest();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void processRequest() {
+        int end = findHeadEnd();
+        if (end == -1) {
+            if (!requestBuffer.hasRemaining()) {
+                reject(431);
+            }
+            return;
+        }
+        String head = new String(requestBuffer.array(), 0, end, StandardCharsets.ISO_8859_1);
+        requestBuffer.flip();
+        requestBuffer.position(end + 4);
+        requestBuffer.compact();
+        Exchange exchange = Exchange.parse(this, head);
+        if (exchange == null) {
+            reject(400);
+            return;
+        }
+        key.interestOps(0);
+        deadline = Long.MAX_VALUE; // Until the handler responds
+        worker.getServer().dispatch(exchange);
+    }
+
+    private int findHeadEnd() {
+        byte[] array = requestBuffer.array();
+        for (int i = 3; i < requestBuffer.position(); i++) {
+            if (array[i] == '\n' && array[i - 1] == '\r' && array[i - 2] == '\n' && array[i - 3] == '\r') {
+                return i - 3;
+            }
+        }
+        return -1;
+    }
+
+    private void reject(int status) {
+        key.interestOps(0);
+        byte[] head = ("HTTP/1.1 " + status + " " + (status == 431 ? "Request Header Fields Too Large" : "Bad Request") + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        write(false, ByteBuffer.wrap(head));
+    }
+
+    void onWritable() {
+        if (listener == null) deadline = now() + getConfig().idleTimeoutMillis; // The client is reading the response
+        try {
+            if (!flush()) return;
+            if (listener != null) {
+                deliver();
+            } else {
+                complete();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Send a complete response. Can be called from any thread
+     */
+    void respond(boolean keepAlive, ByteBuffer... buffers) {
+        worker.execute(() -> write(keepAlive, buffers));
+    }
+
+    /**
+     * Send a complete response, followed by a region of a file. The file is sent with {@link FileChannel#transferTo},
+     * so it goes from the page cache to the socket without being copied into the JVM. Can be called from any thread
+     * @param file File to send from. Closed once it's sent, or the connection is closed
+     */
+    void respond(boolean keepAlive, FileChannel file, long position, long length, ByteBuffer... buffers) {
+        worker.execute(() -> {
+            if (closed) {
+                closeFile(file);
+                return;
+            }
+            this.file = file;
+            this.filePosition = position;
+            this.fileEnd = position + length;
+            write(keepAlive, buffers);
+        });
+    }
+
+    /**
+     * Send the response head, then start delivering the listener's data. Can be called from any thread
+     */
+    void stream(ByteBuffer head, Listener listener) {
+        worker.execute(() -> {
+            if (closed) {
+                listener.close();
+                return;
+            }
+            this.listener = listener;
+            this.requestBuffer = null;
+            this.deadline = Long.MAX_VALUE;
+            output.add(head);
+            listener.getBroadcast().addListener(listener);
+            worker.addStream(this);
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        });
+    }
+
+    private void write(boolean keepAlive, ByteBuffer... buffers) {
+        if (closed) return;
+        this.keepAlive = keepAlive;
+        this.deadline = now() + getConfig().idleTimeoutMillis;
+        Collections.addAll(output, buffers);
+        try {
+            if (flush()) {
+                complete();
+            } else {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Write pending output
+     * @return true if everything has been written
+     */
+    private boolean flush() throws IOException {
+        while (!output.isEmpty()) {
+            ByteBuffer buffer = output.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) return false;
+            output.poll();
+        }
+        while (file != null) {
+            if (filePosition >= fileEnd) {
+                closeFile(file);
+                file = null;
+                break;
+            }
+            long sent = file.transferTo(filePosition, fileEnd - filePosition, channel);
+            if (sent == 0) {
+                if (filePosition >= file.size()) throw new IOException("File has been truncated");
+                return false;
+            }
+            filePosition += sent;
+        }
+        return true;
+    }
+
+    private static void closeFile(FileChannel file) {
+        try {
+            file.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Called once a response has been fully written
+     */
+    private void complete() {
+        if (!keepAlive) {
+            close();
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        idle = requestBuffer == null || requestBuffer.position() == 0;
+        deadline = now() + (idle ? getConfig().idleTimeoutMillis : getConfig().requestTimeoutMillis);
+        if (requestBuffer != null && requestBuffer.position() > 0) {
+            processRequest(); // Pipelined request
+        }
+    }
+
+    /**
+     * Deliver pending data of the listener
+     */
+    void deliver() {
+        if (closed || !output.isEmpty()) return;
+        if (listener.isClosed()) {
+            close();
+            return;
+        }
+        try {
+            Config config = getConfig();
+            int queueSize = listener.getBroadcast().getBuffer().clampQueueSize(config.listenerQueueSize);
+            boolean caughtUp = listener.drain(worker.getScratch(), config.laggardPolicy, queueSize);
+            key.interestOps(caughtUp ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Check if the connection is waiting for the socket to become writable
+     * @return If waiting
+     */
+    boolean isWaitingWritable() {
+        return key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) != 0;
+    }
+
+    void close() {
+        if (closed) return;
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+        if (file != null) {
+            closeFile(file);
+            file = null;
+        }
+        if (listener != null) {
+            worker.removeStream(this);
+            listener.close();
+        }
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    Listener getListener() {
+        return listener;
+    }
+
+    InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+}
@@ -0,0 +1,261 @@
+package me.fan87.fanaaudio.server;
+
+import me.fan87.fanaaudio.stream.Broadcast;
+import me.fan87.fanaaudio.stream.IcyMetadata;
+import me.fan87.fanaaudio.stream.Listener;
+import me.fan87.fanaaudio.stream.StreamArchive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A single HTTP request and its response
+ */
+public class Exchange {
+
+    private static final Map<Integer, String> REASONS = new HashMap<>();
+
+    static {
+        REASONS.put(200, "OK");
+        REASONS.put(302, "Found");
+        REASONS.put(304, "Not Modified");
+        REASONS.put(400, "Bad Request");
+        REASONS.put(404, "Not Found");
+        REASONS.put(405, "Method Not Allowed");
+        REASONS.put(431, "Request Header Fields Too Large");
+        REASONS.put(500, "Internal Server Error");
+        REASONS.put(503, "Service Unavailable");
+    }
+
+    private final Connection connection;
+    private final String method;
+    private final String path;
+    private final String query;
+    private final boolean keepAlive;
+    private final Map<String, String> requestHeaders;
+    private final Map<String, String> responseHeaders = new LinkedHashMap<>();
+    private boolean responded = false;
+
+    private Exchange(Connection connection, String method, String path, String query, boolean keepAlive, Map<String, String> requestHeaders) {
+        this.connection = connection;
+        this.method = method;
+        this.path = path;
+        this.query = query;
+        this.keepAlive = keepAlive;
+        this.requestHeaders = requestHeaders;
+    }
+
+    /**
+     * Parse the request head (Request line + headers, without the empty line)
+     * @param connection Connection the request came from
+     * @param head Request head
+     * @return The exchange, or null if the request is malformed
+     */
+    static Exchange parse(Connection connection, String head) {
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/")) return null;
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) return null;
+            headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+        }
+        String target = requestLine[1];
+        int queryStart = target.indexOf('?');
+        String path = queryStart == -1 ? target : target.substring(0, queryStart);
+        String query = queryStart == -1 ? null : target.substring(queryStart + 1);
+        try {
+            path = URLDecoder.decode(path.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return null;
+        }
+        String connectionHeader = headers.getOrDefault("connection", "").toLowerCase(Locale.ROOT);
+        boolean keepAlive = requestLine[2].equals("HTTP/1.1") ? !connectionHeader.equals("close") : connectionHeader.equals("keep-alive");
+        return new Exchange(connection, requestLine[0], path, query, keepAlive, headers);
+    }
+
+    /**
+     * Respond with a body (Content-Length is added automatically, and the body is omitted for HEAD requests)
+     * @param status Status code
+     * @param body Response body
+     */
+    public void send(int status, byte[] body) {
+        markResponded();
+        if (status != 304) responseHeaders.put("Content-Length", Integer.toString(body.length)); // 304 never has a body
+        responseHeaders.put("Connection", keepAlive ? "keep-alive" : "close");
+        ByteBuffer headBuffer = ByteBuffer.wrap(head(status));
+        if (method.equals("HEAD") || body.length == 0) {
+            connection.respond(keepAlive, headBuffer);
+        } else {
+            connection.respond(keepAlive, headBuffer, ByteBuffer.wrap(body));
+        }
+    }
+
+    /**
+     * Respond with a region of a file, sent without copying it through the JVM (Content-Length is added automatically,
+     * and the body is omitted for HEAD requests)
+     * @param status Status code
+     * @param prefix Bytes to send before the file region (Can be empty)
+     * @param file File to send from
+     * @param offset Offset of the region
+     * @param length Length of the region
+     * @throws IOException If the file couldn't be opened
+     */
+    public void sendFile(int status, byte[] prefix, File file, long offset, long length) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        markResponded();
+        responseHeaders.put("Content-Length", Long.toString(prefix.length + length));
+        responseHeaders.put("Connection", keepAlive ? "keep-alive" : "close");
+        ByteBuffer headBuffer = ByteBuffer.wrap(head(status));
+        if (method.equals("HEAD")) {
+            channel.close();
+            connection.respond(keepAlive, headBuffer);
+        } else {
+            connection.respond(keepAlive, channel, offset, length, headBuffer, ByteBuffer.wrap(prefix));
+        }
+    }
+
+    /**
+     * Respond with an endless audio stream, and attach a listener to the broadcast
+     * @param broadcast The broadcast to listen to
+     * @param position Absolute position in the broadcast's buffer to start from
+     * @param disconnectHandler Called once the listener is disconnected
+     * @return The listener
+     */
+    public Listener stream(Broadcast broadcast, long position, Consumer<Listener> disconnectHandler) {
+        return stream(broadcast, position, null, disconnectHandler);
+    }
+
+    /**
+     * Respond with an endless audio stream with ICY metadata interleaved, and attach a listener to the broadcast
+     * @param broadcast The broadcast to listen to
+     * @param position Absolute position in the broadcast's buffer to start from
+     * @param metadata Metadata to interleave, or null to send audio only
+     * @param disconnectHandler Called once the listener is disconnected
+     * @return The listener
+     */
+    public Listener stream(Broadcast broadcast, long position, IcyMetadata metadata, Consumer<Listener> disconnectHandler) {
+        markResponded();
+        responseHeaders.put("Connection", "close");
+        responseHeaders.put("Cache-Control", "no-cache, no-store");
+        if (metadata != null) responseHeaders.put("icy-metaint", Integer.toString(IcyMetadata.INTERVAL));
+        Listener listener = new Listener(connection.getChannel(), getRemoteAddress(), broadcast, position, metadata, disconnectHandler);
+        connection.stream(ByteBuffer.wrap(head(200)), listener);
+        return listener;
+    }
+
+    /**
+     * Respond with an endless playback of recordings, paced at real time, and attach it to the broadcast like a
+     * listener
+     * @param broadcast The broadcast the recordings are of
+     * @param playback The playback
+     * @param disconnectHandler Called once the listener is disconnected
+     * @return The listener
+     */
+    public Listener stream(Broadcast broadcast, StreamArchive.Playback playback, Consumer<Listener> disconnectHandler) {
+        markResponded();
+        responseHeaders.put("Connection", "close");
+        responseHeaders.put("Cache-Control", "no-cache, no-store");
+        Listener listener = new Listener(connection.getChannel(), getRemoteAddress(), broadcast, playback, disconnectHandler);
+        connection.stream(ByteBuffer.wrap(head(200)), listener);
+        return listener;
+    }
+
+    private void markResponded() {
+        if (responded) throw new IllegalStateException("Response has already been sent");
+        responded = true;
+    }
+
+    private byte[] head(int status) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("HTTP/1.1 ").append(status).append(' ').append(REASONS.getOrDefault(status, "Unknown")).append("\r\n");
+        for (Map.Entry<String, String> entry : responseHeaders.entrySet()) {
+            builder.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+        builder.append("\r\n");
+        return builder.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Check if a response has been sent
+     * @return If responded
+     */
+    public boolean hasResponded() {
+        return responded;
+    }
+
+    public String getRequestMethod() {
+        return method;
+    }
+
+    /**
+     * Get the decoded path of the request (Without the query)
+     * @return Request path
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Get the raw query string of the request
+     * @return Query string, or null if there's none
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * Get the decoded value of a query parameter
+     * @param name Parameter name
+     * @return Parameter value, or null if it's not present
+     */
+    public String getQueryParameter(String name) {
+        if (query == null) return null;
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals == -1 ? pair : pair.substring(0, equals);
+            if (key.equals(name)) {
+                try {
+                    return equals == -1 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+                } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get a request header
+     * @param name Header name (Case-insensitive)
+     * @return Header value, or null if it's not present
+     */
+    public String getRequestHeader(String name) {
+        return requestHeaders.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Get the headers that will be sent with the response. Must be modified before responding
+     * @return Response headers
+     */
+    public Map<String, String> getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    public InetSocketAddress getRemoteAddress() {
+        return connection.getRemoteAddress();
+    }
+}
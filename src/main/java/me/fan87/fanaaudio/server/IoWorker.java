@@ -0,0 +1,167 @@
+package me.fan87.fanaaudio.server;
+
+import me.fan87.fanaaudio.stream.Broadcast;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * An I/O thread with its own selector. Owns a share of the connections of the server, reads their requests,
+ * writes their responses, and delivers broadcast data to the listeners among them
+ */
+class IoWorker implements Runnable {
+
+    private static final int SCRATCH_SIZE = 64 * 1024;
+    private static final long TIMEOUT_CHECK_MILLIS = 1000;
+
+    private final StreamingServer server;
+    private final Selector selector;
+    private final Thread thread;
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(SCRATCH_SIZE);
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Set<Broadcast> published = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private final Map<Broadcast, List<Connection>> streams = new HashMap<>();
+    private final Consumer<Broadcast> publishObserver = this::onPublish;
+    private volatile boolean running = true;
+    private long lastTimeoutCheck = Connection.now();
+
+    IoWorker(StreamingServer server, int index) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, "I/O Thread #" + index);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Run a task on this I/O thread
+     * @param task The task
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        wakeup();
+    }
+
+    /**
+     * Take over a newly accepted connection
+     * @param channel The accepted channel
+     */
+    void accept(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                new Connection(this, channel).register();
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+        });
+    }
+
+    private void onPublish(Broadcast broadcast) {
+        published.add(broadcast);
+        wakeup();
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    void addStream(Connection connection) {
+        Broadcast broadcast = connection.getListener().getBroadcast();
+        streams.computeIfAbsent(broadcast, (key) -> new ArrayList<>()).add(connection);
+        broadcast.addObserver(publishObserver);
+    }
+
+    void removeStream(Connection connection) {
+        Broadcast broadcast = connection.getListener().getBroadcast();
+        List<Connection> connections = streams.get(broadcast);
+        if (connections == null) return;
+        connections.remove(connection);
+        if (connections.isEmpty()) {
+            streams.remove(broadcast);
+            broadcast.removeObserver(publishObserver);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(TIMEOUT_CHECK_MILLIS);
+                wakeupPending.set(false);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                if (!published.isEmpty()) {
+                    for (Iterator<Broadcast> iterator = published.iterator(); iterator.hasNext(); ) {
+                        Broadcast broadcast = iterator.next();
+                        iterator.remove();
+                        List<Connection> connections = streams.get(broadcast);
+                        if (connections == null) continue;
+                        for (int i = connections.size() - 1; i >= 0; i--) {
+                            Connection connection = connections.get(i);
+                            if (!connection.isWaitingWritable()) connection.deliver(); // Slow ones are delivered once writable
+                        }
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isValid() && key.isReadable()) connection.onReadable();
+                    if (key.isValid() && key.isWritable()) connection.onWritable();
+                }
+                long now = Connection.now();
+                if (now - lastTimeoutCheck >= TIMEOUT_CHECK_MILLIS) {
+                    lastTimeoutCheck = now;
+                    for (SelectionKey key : selector.keys()) {
+                        ((Connection) key.attachment()).checkTimeout(now);
+                    }
+                }
+            } catch (Exception e) {
+                server.getRadio().getLogger().error("Unexpected error in " + thread.getName(), e);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((Connection) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    ByteBuffer getScratch() {
+        return scratch;
+    }
+
+    StreamingServer getServer() {
+        return server;
+    }
+}
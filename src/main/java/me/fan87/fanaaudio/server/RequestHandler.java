@@ -0,0 +1,19 @@
+package me.fan87.fanaaudio.server;
+
+import java.io.IOException;
+
+/**
+ * Handles requests of a context registered with {@link StreamingServer#createContext(String, RequestHandler)}
+ */
+@FunctionalInterface
+public interface RequestHandler {
+
+    /**
+     * Handle a request. Runs on the handler pool of the server, so it's allowed to block for a short while.
+     * It must call one of the response methods of the exchange exactly once
+     * @param exchange The exchange
+     * @throws IOException If something went wrong (The client will get a 500)
+     */
+    void handle(Exchange exchange) throws IOException;
+
+}
@@ -0,0 +1,111 @@
+package me.fan87.fanaaudio.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * A response body that's rendered once and served many times. The ETag and Last-Modified are computed up front, so
+ * clients that poll it can revalidate with a conditional GET and get an empty 304 instead of the body.
+ */
+public class StaticResponse {
+
+    private final byte[] body;
+    private final String contentType;
+    private final String cacheControl;
+    private final String etag;
+    private final String lastModified;
+    private final long lastModifiedMillis;
+
+    /**
+     * @param body Response body. Must not be changed afterwards
+     * @param contentType Content-Type of the body
+     * @param cacheControl Cache-Control header, or null to leave it out
+     */
+    public StaticResponse(byte[] body, String contentType, String cacheControl) {
+        this.body = body;
+        this.contentType = contentType;
+        this.cacheControl = cacheControl;
+        this.etag = "\"" + hash(body) + "\"";
+        this.lastModifiedMillis = System.currentTimeMillis() / 1000 * 1000; // HTTP dates have no milliseconds
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        this.lastModified = format.format(new Date(lastModifiedMillis));
+    }
+
+    /**
+     * Render a text response
+     * @param text Response body
+     * @param contentType Content-Type of the body
+     * @param cacheControl Cache-Control header, or null to leave it out
+     * @return The response
+     */
+    public static StaticResponse of(String text, String contentType, String cacheControl) {
+        return new StaticResponse(text.getBytes(StandardCharsets.UTF_8), contentType, cacheControl);
+    }
+
+    private static String hash(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                builder.append(String.format("%02x", digest[i]));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM has SHA-256
+        }
+    }
+
+    /**
+     * Send the response, or 304 Not Modified if the client already has it
+     * @param exchange The exchange
+     */
+    public void send(Exchange exchange) {
+        exchange.getResponseHeaders().put("ETag", etag);
+        exchange.getResponseHeaders().put("Last-Modified", lastModified);
+        if (cacheControl != null) exchange.getResponseHeaders().put("Cache-Control", cacheControl);
+        if (isNotModified(exchange)) {
+            exchange.send(304, new byte[0]);
+            return;
+        }
+        exchange.getResponseHeaders().put("Content-Type", contentType);
+        exchange.send(200, body);
+    }
+
+    private boolean isNotModified(Exchange exchange) {
+        String ifNoneMatch = exchange.getRequestHeader("if-none-match");
+        if (ifNoneMatch != null) { // Takes precedence over If-Modified-Since
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) tag = tag.substring(2);
+                if (tag.equals(etag) || tag.equals("*")) return true;
+            }
+            return false;
+        }
+        String ifModifiedSince = exchange.getRequestHeader("if-modified-since");
+        if (ifModifiedSince != null) {
+            try {
+                SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                return format.parse(ifModifiedSince).getTime() >= lastModifiedMillis;
+            } catch (ParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+}
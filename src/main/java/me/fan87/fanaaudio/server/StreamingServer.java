@@ -0,0 +1,163 @@
+package me.fan87.fanaaudio.server;
+
+import me.fan87.fanaaudio.FANARadio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event driven HTTP server built for long-lived audio streams. Connections are spread over a few I/O threads
+ * (One selector each), and request handlers run on a bounded handler pool. A listener costs a socket and a
+ * {@link me.fan87.fanaaudio.stream.Listener} record, no thread.
+ */
+public class StreamingServer {
+
+    private static final int HANDLER_QUEUE_SIZE = 1024;
+
+    private final FANARadio radio;
+    private final ServerSocketChannel serverChannel;
+    private final IoWorker[] workers;
+    private final ThreadPoolExecutor handlerExecutor;
+    private final Map<String, RequestHandler> contexts = new ConcurrentHashMap<>();
+    private final Thread acceptThread;
+    private volatile boolean running = false;
+
+    /**
+     * Create and bind the server
+     * @param radio Radio instance
+     * @param address Address to bind to
+     * @param ioThreads Amount of I/O threads (Selectors)
+     * @param handlerThreads Amount of request handler threads
+     * @throws IOException If the address couldn't be bound
+     */
+    public StreamingServer(FANARadio radio, InetSocketAddress address, int ioThreads, int handlerThreads) throws IOException {
+        this.radio = radio;
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        this.serverChannel.bind(address, 4096);
+        this.workers = new IoWorker[Math.max(1, ioThreads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new IoWorker(this, i + 1);
+        }
+        AtomicInteger counter = new AtomicInteger();
+        this.handlerExecutor = new ThreadPoolExecutor(Math.max(1, handlerThreads), Math.max(1, handlerThreads), 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(HANDLER_QUEUE_SIZE), (runnable) -> {
+            Thread thread = new Thread(runnable, "Handler Thread #" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.acceptThread = new Thread(this::acceptLoop, "Accept Thread");
+    }
+
+    /**
+     * Start accepting connections
+     */
+    public void start() {
+        running = true;
+        for (IoWorker worker : workers) {
+            worker.start();
+        }
+        acceptThread.start();
+    }
+
+    /**
+     * Stop accepting connections, and close all existing connections
+     */
+    public void stop() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {}
+        for (IoWorker worker : workers) {
+            worker.stop();
+        }
+        handlerExecutor.shutdown();
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                workers[next].accept(channel);
+                next = (next + 1) % workers.length;
+            } catch (IOException e) {
+                if (running) {
+                    radio.getLogger().error("Failed to accept connection: " + e.getMessage());
+                    try {
+                        Thread.sleep(100); // Most likely out of file descriptors, don't spin
+                    } catch (InterruptedException ignored) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Register a handler for every path starting with the prefix. The longest matching prefix wins
+     * @param path Path prefix
+     * @param handler The handler
+     */
+    public void createContext(String path, RequestHandler handler) {
+        contexts.put(path, handler);
+    }
+
+    /**
+     * Unregister a handler. Requests that are already being handled are not affected
+     * @param path Path that was passed to {@link #createContext(String, RequestHandler)}
+     */
+    public void removeContext(String path) {
+        contexts.remove(path);
+    }
+
+    /**
+     * Find the handler for the exchange, and run it on the handler pool
+     */
+    void dispatch(Exchange exchange) {
+        try {
+            handlerExecutor.execute(() -> handle(exchange));
+        } catch (RejectedExecutionException e) {
+            exchange.send(503, "Server is busy".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void handle(Exchange exchange) {
+        String matched = null;
+        for (String path : contexts.keySet()) {
+            if (exchange.getPath().startsWith(path) && (matched == null || path.length() > matched.length())) {
+                matched = path;
+            }
+        }
+        try {
+            if (matched == null) {
+                exchange.send(404, "Not Found".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            contexts.get(matched).handle(exchange);
+            if (!exchange.hasResponded()) {
+                exchange.send(500, new byte[0]);
+            }
+        } catch (Exception e) {
+            radio.getLogger().error("Failed to handle request " + exchange.getPath(), e);
+            if (!exchange.hasResponded()) {
+                exchange.send(500, new byte[0]);
+            }
+        }
+    }
+
+    /**
+     * Get the radio instance the server belongs to
+     * @return Radio instance
+     */
+    public FANARadio getRadio() {
+        return radio;
+    }
+}
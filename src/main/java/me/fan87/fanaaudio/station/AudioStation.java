@@ -1,16 +1,24 @@
 package me.fan87.fanaaudio.station;
 
 
+import com.google.gson.JsonObject;
 import com.google.gson.annotations.Expose;
 import me.fan87.fanaaudio.FANARadio;
+import me.fan87.fanaaudio.configs.Config;
+import me.fan87.fanaaudio.server.StaticResponse;
+import me.fan87.fanaaudio.stream.Broadcast;
+import me.fan87.fanaaudio.stream.IcyMetadata;
+import me.fan87.fanaaudio.stream.Listener;
+import me.fan87.fanaaudio.stream.StreamArchive;
+import me.fan87.fanaaudio.stream.StreamBuffer;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.InetSocketAddress;
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 public class AudioStation {
 
@@ -23,13 +31,30 @@ public class AudioStation {
     @Expose
     public String owner = "";
 
-    private transient long lastSentTime = System.currentTimeMillis();
-    private transient Thread streamingThread = null;
-    private transient Process process = null;
-    private transient boolean disableWatchdog = false;
+    @Expose
+    public List<Rendition> renditions = new ArrayList<>(Collections.singletonList(new Rendition("256k", 256000)));
+
+    @Expose
+    public String relay = ""; // Base URL of the same station on another FANARadio (http://origin:8080/namespace/), empty to play tracks/
 
-    public transient List<File> tracks = new ArrayList<>();
-    public transient Map<OutputStream, InetSocketAddress> receivers = new HashMap<>();
+    private transient volatile StationPlayout playout = null;
+
+    private transient volatile TrackLibrary library = null;
+    private transient volatile StationRelay relaySource = null;
+    private transient Broadcast[] broadcasts = null;
+    private transient HlsSegmenter[] segmenters = null;
+    private transient StaticResponse masterPlaylist = null;
+    private transient StreamArchive[] archives = null;
+    private transient DvrPlaylist[] dvrPlaylists = null;
+    private transient StaticResponse dvrMasterPlaylist = null;
+    private transient volatile StaticResponse m3u = null;
+    private transient volatile StaticResponse nowPlaying = null;
+    private transient File nowPlayingTrack = null; // Guarded by metadata
+    private transient long nowPlayingStarted = 0;
+    private final transient IcyMetadata metadata = new IcyMetadata();
+    private final transient AtomicInteger listenerSlots = new AtomicInteger(); // Taken when a listener is accepted, before it's attached
+    private final transient LongAdder watchdogSkips = new LongAdder();
+    private final transient LongAdder trackErrors = new LongAdder();
 
     AudioStation() {
 
@@ -42,228 +67,339 @@ public class AudioStation {
     }
 
     /**
-     * Send byte to all receivers
-     * @param radio Radio instance (For disconnect logging)
-     * @param bytes Bytes to send (Require bytes array. You can cast int to byte)
+     * Publish a frame to all listeners of a rendition. Never waits for listeners
+     * @param rendition Index of the rendition
+     * @param source Buffer containing the frame
+     * @param offset Absolute offset of the frame
+     * @param length Length of the frame
      */
-    private void sendData(FANARadio radio, byte... bytes) {
-        for (OutputStream outputStream : new HashMap<>(receivers).keySet()) {
-            try {
-                outputStream.write(bytes);
-            } catch (Exception e) {
-                radio.getLogger().info(String.format("[%s]  Client %s has disconnected! ", namespace, receivers.get(outputStream).getHostName() + ":" + receivers.get(outputStream).getPort()));
-                receivers.remove(outputStream);
-            }
-        }
+    void sendData(int rendition, ByteBuffer source, int offset, int length) {
+        broadcasts[rendition].publish(source, offset, length);
+    }
+
+    HlsSegmenter getHls(int rendition) {
+        return segmenters[rendition];
+    }
+
+    /**
+     * Get the broadcast of a rendition
+     * @param rendition Index of the rendition
+     * @return The broadcast, or null if the station hasn't been started
+     */
+    public Broadcast getBroadcast(int rendition) {
+        Broadcast[] broadcasts = this.broadcasts;
+        return broadcasts == null || rendition >= broadcasts.length ? null : broadcasts[rendition];
+    }
+
+    void countWatchdogSkip() {
+        watchdogSkips.increment();
+    }
+
+    void countTrackError() {
+        trackErrors.increment();
+    }
+
+    /**
+     * Get how many times the watchdog has skipped a stuck track
+     * @return Skip count
+     */
+    public long getWatchdogSkips() {
+        return watchdogSkips.sum();
     }
 
-    private transient int promises = 0;
+    /**
+     * Get how many tracks have been abandoned because they couldn't be prepared or read
+     * @return Error count
+     */
+    public long getTrackErrors() {
+        return trackErrors.sum();
+    }
 
     /**
-     * Load all tracks
-     * @param radio Radio instance (For logging)
-     * @return If successful
+     * Get the renditions the station is played in. The first one is the default
+     * @return Renditions (Never empty)
      */
-    private boolean indexTracks(FANARadio radio) {
-        disableWatchdog = true;
-        File folder = new File("tracks/" + this.namespace);
-        if (!folder.isDirectory() || !folder.exists()) {
-            try {
-                folder.delete();
-            } catch (Exception e) {}
-            folder.mkdirs();
+    public List<Rendition> getRenditions() {
+        if (renditions == null || renditions.isEmpty()) return Collections.singletonList(new Rendition("256k", 256000));
+        return renditions;
+    }
+
+    private int findRendition(String name) {
+        List<Rendition> renditions = getRenditions();
+        for (int i = 0; i < renditions.size(); i++) {
+            if (renditions.get(i).name.equals(name)) return i;
         }
+        return -1;
+    }
 
-        List<File> files = new ArrayList<>(Arrays.asList(folder.listFiles()));
-        files.sort(new Comparator<File>() {
-            @Override
-            public int compare(File o1, File o2) {
-                int n1 = extractNumber(o1.getName());
-                int n2 = extractNumber(o2.getName());
-                return n1 - n2;
+    /**
+     * Start playing + processing tracks + sending radio data
+     * @param radio Instance of FANARadio
+     */
+    public void startServicing(FANARadio radio) {
+        Config config = radio.getConfigsManager().getConfig();
+        List<Rendition> renditions = getRenditions();
+        broadcasts = new Broadcast[renditions.size()];
+        segmenters = new HlsSegmenter[renditions.size()];
+        boolean recorded = config.archiveHours > 0 && !isRelay(); // Edges redirect to the recordings of the origin
+        StreamArchive[] archives = recorded ? new StreamArchive[renditions.size()] : null;
+        DvrPlaylist[] dvrPlaylists = recorded ? new DvrPlaylist[renditions.size()] : null;
+        StringBuilder master = new StringBuilder("#EXTM3U\n");
+        StringBuilder dvrMaster = new StringBuilder("#EXTM3U\n");
+        for (int i = 0; i < renditions.size(); i++) {
+            broadcasts[i] = new Broadcast(getBufferCapacity(config));
+            segmenters[i] = new HlsSegmenter(broadcasts[i].getId(), config.hlsSegmentSeconds, config.hlsWindowSize);
+            if (archives != null) {
+                archives[i] = new StreamArchive(radio, namespace + "/" + renditions.get(i).name, broadcasts[i], new File("archive/" + namespace + "/" + renditions.get(i).name), config.archiveHours * 3_600_000L);
+                archives[i].start();
+                dvrPlaylists[i] = new DvrPlaylist(archives[i], config.hlsSegmentSeconds, config.dvrWindowMinutes);
             }
-
-            private int extractNumber(String name) {
-                int i = 0;
-                try {
-                    String number = name.split("_")[0];
-                    i = Integer.parseInt(number);
-                } catch(Exception e) {
-                    i = 0;
-                }
-                return i;
+            String streamInfo = "#EXT-X-STREAM-INF:BANDWIDTH=" + renditions.get(i).bitrate * 11 / 10 + ",CODECS=\"mp4a.40.2\"\n"; // ADTS framing overhead
+            master.append(streamInfo).append(renditions.get(i).name).append("/radio.m3u8\n");
+            dvrMaster.append(streamInfo).append(renditions.get(i).name).append("/dvr.m3u8\n");
+        }
+        masterPlaylist = StaticResponse.of(master.toString(), "application/vnd.apple.mpegurl", "no-cache");
+        dvrMasterPlaylist = StaticResponse.of(dvrMaster.toString(), "application/vnd.apple.mpegurl", "no-cache");
+        this.archives = archives;
+        this.dvrPlaylists = dvrPlaylists;
+        if (isRelay()) {
+            synchronized (this) {
+                relaySource = new StationRelay(radio, this);
+                relaySource.start();
             }
-        });
+            return;
+        }
+        TrackLibrary library = new TrackLibrary(radio, this);
+        this.library = library;
+        library.start(() -> onLibraryChanged(radio, library));
+    }
 
-        if (files.size() == 0) {
-            radio.getLogger().warn("Radio: " + namespace + " has no track. Ignoring");
-            return false;
+    private synchronized void onLibraryChanged(FANARadio radio, TrackLibrary library) {
+        if (this.library != library) return; // Stopped
+        if (playout != null) {
+            playout.onLibraryChanged();
+            return;
         }
-        for (File file : files) {
-            radio.getLogger().info(String.format("[%s]  Added %s to Track List", namespace, file.getName()));
-            tracks.add(file);
-            splitAudio(radio, file, false);
+        if (library.getTracks().isEmpty()) {
+            radio.getLogger().warn("Radio: " + namespace + " has no track. Waiting for tracks");
+            return;
         }
-        disableWatchdog = false;
-        return true;
+        playout = new StationPlayout(radio, this, library);
+        playout.start();
     }
 
     /**
-     * Split a song into multiple parts to avoid FFmpeg glitch
+     * Stop playing. Transcodes the station is waiting for are cancelled
+     * @param radio Instance of FANARadio
+     */
+    public synchronized void stopServicing(FANARadio radio) {
+        if (playout != null) {
+            playout.stop();
+            playout = null;
+        }
+        if (library != null) {
+            library.stop();
+            library = null;
+        }
+        if (relaySource != null) {
+            relaySource.stop();
+            relaySource = null;
+        }
+        if (segmenters != null) {
+            for (HlsSegmenter segmenter : segmenters) {
+                segmenter.clear();
+            }
+        }
+        if (archives != null) {
+            for (StreamArchive archive : archives) {
+                archive.stop();
+            }
+        }
+    }
+
+    /**
+     * Get the tracks of the station
+     * @return The track library, or null if the station hasn't been started
+     */
+    public TrackLibrary getLibrary() {
+        return library;
+    }
+
+    /**
+     * Get how many tracks of this station have been transcoded
      * @param radio Radio instance
-     * @param track Track
+     * @return Transcoded tracks and total tracks, as {done, total}
      */
-    private List<File> splitAudio(FANARadio radio, File track, boolean promise) {
-        radio.getLogger().info("Preparing Track: " + track.getName() + "! If it's stuck, it means the track wasn't ready. It will take a while, but it won't take too long.");
-        File cacheFolder = new File("cache/" + this.namespace + "/" + track.getName() + "/");
-        if (!cacheFolder.exists()) {
-            cacheFolder.mkdirs();
-        } else {
-            List<File> files = new ArrayList<>(Arrays.asList(cacheFolder.listFiles()));
-            files.sort(new Comparator<File>() {
-                @Override
-                public int compare(File o1, File o2) {
-                    int n1 = extractNumber(o1.getName());
-                    int n2 = extractNumber(o2.getName());
-                    return n1 - n2;
-                }
+    public int[] getTranscodeProgress(FANARadio radio) {
+        return radio.getTranscodeService().getProgress(this);
+    }
 
-                private int extractNumber(String name) {
-                    int i = 0;
-                    try {
-                        String number = name.split("_")[0];
-                        i = Integer.parseInt(number);
-                    } catch(Exception e) {
-                        i = 0;
-                    }
-                    return i;
-                }
-            });
-            if (promise) promises -= 1;
-            radio.getLogger().info("Prepared Track: " + track.getName());
+    /**
+     * Get the track that's currently playing
+     * @return Current track, or null if nothing has been played yet
+     */
+    public File getCurrentTrack() {
+        StationPlayout playout = this.playout;
+        return playout == null ? null : playout.getCurrentTrack();
+    }
+
+    /**
+     * Get how far into the current track the station is (Based on the frames that have been sent)
+     * @return Position in milliseconds
+     */
+    public long getTrackPosition() {
+        StationPlayout playout = this.playout;
+        return playout == null ? 0 : playout.getTrackPosition();
+    }
+
+    private static int getBufferCapacity(Config config) {
+        return StreamBuffer.getCapacity(Math.max(256 * 1024, config.listenerQueueSize * 2));
+    }
 
-            return files;
+    /**
+     * Get how much off-heap memory the stream buffers of the station would take if it was started now
+     * @param config The config
+     * @return Size in bytes
+     */
+    public long getRequiredBufferBytes(Config config) {
+        return (long) getRenditions().size() * getBufferCapacity(config);
+    }
+
+    /**
+     * Get how much off-heap memory the stream buffers of the station take
+     * @return Size in bytes, 0 if the station hasn't been started
+     */
+    public long getBufferBytes() {
+        Broadcast[] broadcasts = this.broadcasts;
+        if (broadcasts == null) return 0;
+        long bytes = 0;
+        for (Broadcast broadcast : broadcasts) {
+            bytes += broadcast.getBuffer().getCapacity();
         }
-        ProcessBuilder builder = new ProcessBuilder("ffmpeg", "-i", String.format("%s", track.getAbsolutePath()), "-reset_timestamps", "1", "-ac", "2", "-f", "segment", "-segment_time", "300", "-y", "-acodec", "aac", "-sample_rate", "44100", "-map", "0:a", "-write_xing", "0", "-b:a", "256000", "cache/" + this.namespace + "/" + track.getName() + "/%03d_out.aac");
-        try {
-            Process start = builder.start();
-            start.waitFor();
-            List<File> files = new ArrayList<>(Arrays.asList(cacheFolder.listFiles()));
-            files.sort(new Comparator<File>() {
-                @Override
-                public int compare(File o1, File o2) {
-                    int n1 = extractNumber(o1.getName());
-                    int n2 = extractNumber(o2.getName());
-                    return n1 - n2;
-                }
+        return bytes;
+    }
 
-                private int extractNumber(String name) {
-                    int i = 0;
-                    try {
-                        String number = name.split("_")[0];
-                        i = Integer.parseInt(number);
-                    } catch(Exception e) {
-                        i = 0;
-                    }
-                    return i;
-                }
-            });
-            radio.getLogger().info("Prepared Track: " + track.getName());
-            if (promise) promises -= 1;
-            return files;
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Get the amount of listeners of every rendition combined
+     * @return Listener count
+     */
+    public int getListenerCount() {
+        Broadcast[] broadcasts = this.broadcasts;
+        if (broadcasts == null) return 0;
+        int count = 0;
+        for (Broadcast broadcast : broadcasts) {
+            count += broadcast.getListeners().size();
         }
-        return null;
+        return count;
+    }
 
+    /**
+     * Check if the station is relayed from another FANARadio instead of playing local tracks
+     * @return If relayed
+     */
+    public boolean isRelay() {
+        return relay != null && !relay.isEmpty();
+    }
 
+    /**
+     * Check if the station would sound the same with the settings of another station, so it doesn't need to be
+     * restarted when the config changes
+     * @param other The other station
+     * @return If the namespace, the source and the renditions are the same
+     */
+    public boolean isSameOutput(AudioStation other) {
+        if (!namespace.equals(other.namespace) || getRenditions().size() != other.getRenditions().size()) return false;
+        if (!Objects.equals(relay, other.relay)) return false;
+        for (int i = 0; i < getRenditions().size(); i++) {
+            Rendition rendition = getRenditions().get(i);
+            Rendition otherRendition = other.getRenditions().get(i);
+            if (!rendition.name.equals(otherRendition.name) || !rendition.getParameters().equals(otherRendition.getParameters())) return false;
+        }
+        return true;
     }
 
     /**
-     * Start playing + processing tracks + sending radio data
-     * @param radio Instance of FANARadio
+     * Take the name and the owner of another station, without interrupting the stream
+     * @param other The other station
      */
-    public void startServicing(FANARadio radio) {
-        new Thread(() -> {
-            if (!indexTracks(radio)) {
-                return;
-            }
-            new Thread(() -> { // Radio Handling Thread.  Note: There will only be one Radio Handling Tread
-                while (true) {
-                    if (radio.getConfigsManager().getConfig().shuffle) {
-                        Collections.shuffle(tracks);
-                    }
-                    for (File track : tracks) {
-                        streamingThread = new Thread(() -> { // Streaming Thread. This will send a song.
-                            try {
-                                disableWatchdog = true;
-                                for (File file : splitAudio(radio, track, false)) {
-                                    disableWatchdog = false;
-                                    radio.getLogger().info(String.format("[%s]  Started playing track: %s", this.namespace, track.getName()));
-                                    ProcessBuilder builder = new ProcessBuilder("ffmpeg", "-re", "-i", String.format("%s", file.getAbsolutePath()), "-reset_timestamps", "1", "-ac", "2", "-y", "-f", "adts", "-acodec", "aac", "-sample_rate", "44100", "-map", "0:a", "-map_metadata", "-1", "-write_xing", "0", "-id3v2_version", "0", "-b:a", "256000", "pipe:"); // Convert Format to streamable.aac (Using FFmpeg)
-                                    process = builder.start();
-                                    InputStream inputStream = process.getInputStream();
-                                    int read;
-                                    while ((read = inputStream.read()) != -1) {
-                                        this.lastSentTime = System.currentTimeMillis(); // For watchdog thread (Skip the song if it's stuck)
-                                        sendData(radio, (byte) read); // Send data
-                                    }
-                                    inputStream.close();
-                                    if (radio.getConfigsManager().getConfig().debug) {
-                                        Scanner errorScanner = new Scanner(process.getErrorStream());
-                                        while (errorScanner.hasNextLine()) {
-                                            System.out.println(errorScanner.nextLine()); // Send ffmpeg output to console for debugging purpose
-                                        }
-                                    }
-                                }
-
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }, "Streaming Thread " + this.namespace);
-
-                        try {                     // Start song sending (Stream Thread) thread
-                            streamingThread.start();
-                            while (!streamingThread.isInterrupted() && streamingThread.isAlive()) {}
-                            radio.getLogger().warn(String.format("[%s]  Streaming Thread has been stopped! Song skipped!", namespace));
-                            if (radio.getConfigsManager().getConfig().debug && process != null) {
-                                Scanner errorScanner = new Scanner(process.getErrorStream());
-                                while (errorScanner.hasNextLine()) {
-                                    System.out.println(errorScanner.nextLine()); // Send ffmpeg output to console for debugging purpose
-                                }
-                            }
-                        } catch (Exception e) {
-                            radio.getLogger().warn(String.format("[%s]  Streaming Thread has been stopped! Song skipped!", namespace));
-                            if (radio.getConfigsManager().getConfig().debug) {
-                                e.printStackTrace();
-                                if (process != null) {
-                                    Scanner errorScanner = new Scanner(process.getErrorStream());
-                                    while (errorScanner.hasNextLine()) {
-                                        System.out.println(errorScanner.nextLine()); // Send ffmpeg output to console for debugging purpose
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }).start();
+    public void updateInfo(AudioStation other) {
+        this.name = other.name;
+        this.owner = other.owner;
+        renderPlaylist();
+        synchronized (metadata) {
+            renderNowPlaying(nowPlayingTrack, nowPlayingStarted); // Same track, with the new name and owner
+        }
+    }
 
-            new Thread(() -> {
-                while (true) {
-                    if (disableWatchdog) {
-                        lastSentTime = System.currentTimeMillis();
-                    }
-                    long timeout = System.currentTimeMillis() - lastSentTime;
-                    if ((timeout) > 10000) {
-                        lastSentTime = System.currentTimeMillis();
-                        radio.getLogger().error(String.format("[%s]  Send Timeout (%sms > 10000ms) Stopping Thread (Skip Song)...", namespace, Long.toString(timeout)));
-                        streamingThread.stop();
-                    }
-                }
-            }, "Watchdog Thread " + this.namespace).start();
-        }, this.namespace + " Main").start();
+    /**
+     * Update the title sent to players and /namespace/nowplaying.json. Called once per track change
+     * @param track The track that has started, or null if nothing is playing
+     */
+    void setNowPlaying(File track) {
+        synchronized (metadata) {
+            nowPlayingTrack = track;
+            nowPlayingStarted = System.currentTimeMillis();
+            renderNowPlaying(track, nowPlayingStarted);
+        }
+    }
+
+    private void renderNowPlaying(File track, long started) {
+        String title = track == null ? null : getTitle(track);
+        metadata.setTitle(title);
+        JsonObject object = new JsonObject();
+        object.addProperty("namespace", namespace);
+        object.addProperty("name", name);
+        object.addProperty("owner", owner);
+        object.addProperty("title", title);
+        object.addProperty("file", track == null ? null : track.getName());
+        object.addProperty("started", track == null ? null : started);
+        nowPlaying = StaticResponse.of(object.toString(), "application/json; charset=utf-8", "no-cache");
+    }
+
+    /**
+     * Get the title of a track from its file name, without the number prefix and the extension
+     * @param track The track
+     * @return The title
+     */
+    private static String getTitle(File track) {
+        String name = track.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) name = name.substring(0, dot);
+        int underscore = name.indexOf('_');
+        if (underscore > 0 && name.substring(0, underscore).matches("\\d+")) name = name.substring(underscore + 1);
+        return name;
+    }
+
+    private void renderPlaylist() {
+        String text =
+                "#EXTM3U\n" +
+                        "#EXTINF:0, " + owner + " - " + name + "\n" +
+                        "radio.aac";
+        m3u = StaticResponse.of(text, "audio/mpegurl", "no-cache");
+    }
 
+    /**
+     * Disconnect listeners that have received everything, and eventually everyone. Called after the station has
+     * been stopped
+     * @param force Disconnect listeners that are still behind too
+     * @return Amount of listeners that are still connected
+     */
+    public int closeListeners(boolean force) {
+        Broadcast[] broadcasts = this.broadcasts;
+        if (broadcasts == null) return 0;
+        int remaining = 0;
+        for (Broadcast broadcast : broadcasts) {
+            remaining += broadcast.closeListeners(!force);
+        }
+        return remaining;
+    }
 
+    /**
+     * Unregister all Http Contexts. Requests to the station fall through to the index page afterwards
+     * @param radio Instance of FANARadio
+     */
+    public void unregisterHandlers(FANARadio radio) {
+        radio.getServer().removeContext("/" + this.namespace + "/");
     }
 
     /**
@@ -271,56 +407,157 @@ public class AudioStation {
      * @param radio Instance of FANARadio
      */
     public void registerHandlers(FANARadio radio) {
+        renderPlaylist();
+        if (nowPlaying == null) setNowPlaying(null);
+        Consumer<Listener> disconnectHandler = (disconnected) -> { // Shared by every listener
+            listenerSlots.decrementAndGet();
+            radio.getLogger().info(String.format("[%s]  Client %s has disconnected! ", namespace, disconnected.getName()));
+        };
         radio.getServer().createContext("/" + this.namespace + "/", (exchange) -> {
-            if (exchange.getRequestURI().getPath().endsWith(".aac")) {
-                new Thread(() -> {
+            String file = exchange.getPath().substring(this.namespace.length() + 2);
+            int rendition = 0;
+            boolean explicit = false;
+            int slash = file.indexOf('/');
+            if (slash != -1 && findRendition(file.substring(0, slash)) != -1) { // /namespace/<rendition>/...
+                rendition = findRendition(file.substring(0, slash));
+                file = file.substring(slash + 1);
+                explicit = true;
+            }
+            boolean archived = file.startsWith("archive/") || (file.endsWith(".aac") && exchange.getQueryParameter("start") != null);
+            if (isRelay() && (file.endsWith(".m3u8") || file.startsWith("hls/") || archived)) { // Segments are files of the origin, and cacheable anyway. Only the origin records
+                String origin = relay.endsWith("/") ? relay : relay + "/";
+                String query = exchange.getQuery() == null ? "" : "?" + exchange.getQuery();
+                exchange.getResponseHeaders().put("Location", origin + exchange.getPath().substring(this.namespace.length() + 2) + query);
+                exchange.send(302, new byte[0]);
+                return;
+            }
+            if (file.startsWith("hls/") && file.endsWith(".aac")) {
+                HlsSegmenter.Segment segment = segmenters == null ? null : segmenters[rendition].getSegment(file.substring(4, file.length() - 4));
+                if (segment == null) {
+                    exchange.send(404, "Segment is not available".getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                exchange.getResponseHeaders().put("Content-Type", "audio/aac");
+                exchange.getResponseHeaders().put("Cache-Control", "public, max-age=86400, immutable"); // A segment name is never reused, not even after a restart
+                exchange.sendFile(200, segment.timestamp, segment.file, segment.offset, segment.length);
+                return;
+            }
+            if (file.startsWith("archive/") && file.endsWith(".aac")) {
+                DvrPlaylist[] dvrPlaylists = this.dvrPlaylists;
+                StreamArchive.Range segment = null;
+                try {
+                    segment = dvrPlaylists == null ? null : dvrPlaylists[rendition].getSegment(Long.parseLong(file.substring(8, file.length() - 4)));
+                } catch (NumberFormatException ignored) {}
+                if (segment == null) {
+                    exchange.send(404, "Segment is not available".getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                exchange.getResponseHeaders().put("Content-Type", "audio/aac");
+                exchange.getResponseHeaders().put("Cache-Control", "public, max-age=86400, immutable"); // Only listed once complete
+                exchange.sendFile(200, HlsSegmenter.timestampTag(segment.startMillis * 1_000_000L), segment.file, segment.offset, segment.length);
+                return;
+            }
+            if (file.equals("dvr.m3u8")) {
+                DvrPlaylist[] dvrPlaylists = this.dvrPlaylists;
+                if (dvrPlaylists == null) {
+                    exchange.send(404, "Station is not recorded".getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                if (!explicit && dvrPlaylists.length > 1) {
+                    dvrMasterPlaylist.send(exchange);
+                    return;
+                }
+                byte[] playlist = dvrPlaylists[rendition].getPlaylist();
+                if (playlist == null) {
+                    exchange.send(503, "Nothing has been recorded yet".getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                exchange.getResponseHeaders().put("Content-Type", "application/vnd.apple.mpegurl");
+                exchange.getResponseHeaders().put("Cache-Control", "public, max-age=1");
+                exchange.send(200, playlist);
+                return;
+            }
+            if (file.endsWith(".m3u8")) {
+                if (segmenters == null) {
+                    exchange.send(503, "Station is not ready".getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                if (!explicit && segmenters.length > 1) { // Let the player pick a rendition
+                    masterPlaylist.send(exchange);
+                    return;
+                }
+                byte[] playlist = segmenters[rendition].getPlaylist();
+                if (playlist == null) {
+                    exchange.send(503, "Station is not ready".getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                exchange.getResponseHeaders().put("Content-Type", "application/vnd.apple.mpegurl");
+                exchange.getResponseHeaders().put("Cache-Control", "public, max-age=1");
+                exchange.send(200, playlist);
+                return;
+            }
+            if (file.endsWith(".aac")) {
+                if (broadcasts == null) {
+                    exchange.send(503, "Station is not ready".getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                if (listenerSlots.incrementAndGet() > radio.getConfigsManager().getConfig().maxListenersPerStation) { // Listeners are attached later, on the I/O thread
+                    listenerSlots.decrementAndGet();
+                    exchange.send(503, "Station is full".getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                Broadcast broadcast = broadcasts[rendition];
+                String start = exchange.getQueryParameter("start");
+                if (start != null) { // Time-shifted, played back from the archive
+                    StreamArchive[] archives = this.archives;
+                    StreamArchive.Playback playback = null;
                     try {
-                        exchange.getResponseHeaders().add("Content-Type", "audio/aac");
-                        exchange.sendResponseHeaders(200, 0);
-                        radio.getLogger().info(String.format("[%s]  %s has joined the stream", this.namespace, exchange.getRemoteAddress().getHostName() + ":" + exchange.getRemoteAddress().getPort()));
-                        receivers.put(exchange.getResponseBody(), exchange.getRemoteAddress());
-                    } catch (Exception e) {
-                        e.printStackTrace();
+                        playback = archives == null ? null : archives[rendition].play(Long.parseLong(start) * 1000, radio.getConfigsManager().getConfig().burstMillis);
+                    } catch (NumberFormatException ignored) {}
+                    if (playback == null) {
+                        listenerSlots.decrementAndGet();
+                        exchange.send(404, "Nothing has been recorded at that time".getBytes(StandardCharsets.UTF_8));
+                        return;
                     }
-                }).start();
+                    exchange.getResponseHeaders().put("Content-Type", "audio/aac");
+                    exchange.getResponseHeaders().put("X-Archive-Start", Long.toString(playback.getStartMillis()));
+                    Listener listener = exchange.stream(broadcast, playback, disconnectHandler);
+                    radio.getLogger().info(String.format("[%s]  %s has joined the stream from %s (%s)", this.namespace, listener.getName(), new Date(playback.getStartMillis()), getRenditions().get(rendition).name));
+                    return;
+                }
+                exchange.getResponseHeaders().put("Content-Type", "audio/aac");
+                StreamBuffer buffer = broadcast.getBuffer();
+                long position = buffer.getWritePosition();
+                long limit = Math.max(buffer.getOldestPosition(), position - buffer.clampQueueSize(radio.getConfigsManager().getConfig().listenerQueueSize)); // Or it would be a laggard already
+                int burstMillis = radio.getConfigsManager().getConfig().burstMillis;
+                String from = exchange.getQueryParameter("from");
+                if (from != null && broadcast.getId().equals(exchange.getQueryParameter("id"))) { // A relay resuming after the last frame it got
+                    try {
+                        position = buffer.alignToFrame(Math.min(Math.max(Long.parseLong(from), limit), position));
+                    } catch (NumberFormatException ignored) {}
+                } else if (burstMillis > 0) { // Start a bit in the past, so the player fills its buffer right away
+                    position = buffer.alignToFrame(Math.max(buffer.seekBack(burstMillis * 1_000_000L), limit));
+                }
+                exchange.getResponseHeaders().put("X-Stream-Id", broadcast.getId());
+                exchange.getResponseHeaders().put("X-Stream-Position", Long.toString(position));
+                IcyMetadata icy = null;
+                if ("1".equals(exchange.getRequestHeader("icy-metadata"))) {
+                    icy = metadata;
+                    exchange.getResponseHeaders().put("icy-name", name);
+                }
+                Listener listener = exchange.stream(broadcast, position, icy, disconnectHandler);
+                radio.getLogger().info(String.format("[%s]  %s has joined the stream (%s)", this.namespace, listener.getName(), getRenditions().get(rendition).name));
                 return;
             }
-            if (exchange.getRequestURI().getPath().endsWith(".m3u")) {
-                String text =
-                        "#EXTM3U\n" +
-                                "#EXTINF:0, " + owner + " - " + name + "\n" +
-                                "radio.aac";
-                exchange.getResponseHeaders().add("Content-Type", "audio/mpegurl");
-                exchange.sendResponseHeaders(200, text.getBytes(StandardCharsets.UTF_8).length);
-                exchange.getResponseBody().write(text.getBytes(StandardCharsets.UTF_8));
-                exchange.getResponseBody().flush();
-                exchange.getResponseBody().close();
+            if (file.equals("nowplaying.json")) {
+                nowPlaying.send(exchange);
                 return;
             }
-            StringBuilder builder = new StringBuilder();
-            builder.append(String.format("" +
-                    "<!DOCTYPE html>\n" +
-                    "<html>\n" +
-                    "<head>\n" +
-                    "<meta charset=\"UTF-8\">\n" +
-                    String.format("<title>%s</title>\n", radio.getConfigsManager().getConfig().stationName) +
-                    "</head>\n" +
-                    "<body>\n" +
-                    "<h1>%s</h1>\n", radio.getConfigsManager().getConfig().stationName) +
-                    String.format("<h2>%s</h2>\n", radio.getConfigsManager().getConfig().radioIndexSubtitle) +
-                    String.format("<p>%s</p>\n", radio.getConfigsManager().getConfig().radioIndexHint));
-            for (AudioStation station : radio.getStationsManager().stations) {
-                builder.append(String.format("\n<li><a href=\"%s\">%s</a>  (<a href=\"%s\">M3U</a> | <a href=\"%s\">AAC</a>) </li>",
-                        "/" + station.namespace + "/radio.aac", station.name, "/" + station.namespace + "/radio.m3u", "/" + station.namespace + "/radio.aac"));
+            if (file.endsWith(".m3u")) {
+                m3u.send(exchange);
+                return;
             }
-            builder.append("</body>\n");
-            builder.append("</html>\n");
-            String text = builder.toString();
-            exchange.getResponseHeaders().add("Content-Type", "text/html");
-            exchange.sendResponseHeaders(200, text.getBytes(StandardCharsets.UTF_8).length);
-            exchange.getResponseBody().write(text.getBytes(StandardCharsets.UTF_8));
-            exchange.getResponseBody().flush();
-            exchange.getResponseBody().close();
+            radio.getStationsManager().getIndex().send(exchange);
         });
     }
 }
\ No newline at end of file
@@ -0,0 +1,88 @@
+package me.fan87.fanaaudio.station;
+
+import me.fan87.fanaaudio.stream.StreamArchive;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The DVR playlist of a rendition: Segments of its archive from the last few minutes or hours, so players can seek
+ * back within the window. Segments are byte ranges of the recordings, and a segment is only listed once it's
+ * complete. The playlist is re-rendered at most once per second, however many players poll it.
+ */
+class DvrPlaylist {
+
+    private final StreamArchive archive;
+    private final long segmentMillis;
+    private final long windowMillis;
+    private volatile byte[] playlist = null;
+    private volatile long renderedAt = 0;
+
+    /**
+     * @param archive The archive of the rendition
+     * @param segmentSeconds Duration of a segment
+     * @param windowMinutes How far back players can seek
+     */
+    DvrPlaylist(StreamArchive archive, int segmentSeconds, int windowMinutes) {
+        this.archive = archive;
+        this.segmentMillis = Math.max(1, segmentSeconds) * 1000L;
+        this.windowMillis = Math.max(1, windowMinutes) * 60_000L;
+    }
+
+    /**
+     * Get the playlist
+     * @return Rendered playlist, or null if no segment has been recorded yet
+     */
+    byte[] getPlaylist() {
+        if (System.currentTimeMillis() - renderedAt < 1000) return playlist;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - renderedAt >= 1000) {
+                playlist = render(archive.list(now - windowMillis, segmentMillis));
+                renderedAt = now;
+            }
+            return playlist;
+        }
+    }
+
+    /**
+     * Get a segment that's in the playlist
+     * @param key Key of the segment, as in its URL
+     * @return The segment, or null if it's not available (anymore)
+     */
+    StreamArchive.Range getSegment(long key) {
+        return archive.getSegment(key, segmentMillis);
+    }
+
+    private byte[] render(List<StreamArchive.Range> segments) {
+        if (segments.isEmpty()) return null;
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        long targetDuration = segmentMillis / 1000;
+        StringBuilder entries = new StringBuilder();
+        StreamArchive.Range previous = null;
+        for (StreamArchive.Range segment : segments) {
+            targetDuration = Math.max(targetDuration, (segment.durationMillis + 999) / 1000);
+            if (previous != null && segment.key != previous.key + 1) { // The station was down in between
+                entries.append("#EXT-X-DISCONTINUITY\n");
+            }
+            if (previous == null || segment.key != previous.key + 1) {
+                entries.append("#EXT-X-PROGRAM-DATE-TIME:").append(format.format(new Date(segment.startMillis))).append('\n');
+            }
+            entries.append(String.format(Locale.ROOT, "#EXTINF:%.3f,\n", segment.durationMillis / 1e3));
+            entries.append("archive/").append(segment.key).append(".aac\n");
+            previous = segment;
+        }
+        StringBuilder builder = new StringBuilder();
+        builder.append("#EXTM3U\n");
+        builder.append("#EXT-X-VERSION:3\n");
+        builder.append("#EXT-X-TARGETDURATION:").append(targetDuration).append('\n');
+        builder.append("#EXT-X-MEDIA-SEQUENCE:").append(segments.get(0).key).append('\n');
+        builder.append(entries);
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
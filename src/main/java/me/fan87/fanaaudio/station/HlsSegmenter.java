@@ -0,0 +1,189 @@
+package me.fan87.fanaaudio.station;
+
+import me.fan87.fanaaudio.transcode.CacheEntry;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cuts what a station plays into short HLS segments, and keeps the live playlist of the latest ones. A segment is
+ * never written anywhere: It's a byte range of a cached transcode (Which is ADTS already), so it can be sent straight
+ * from the file. The cache entries of segments that can still be requested are retained, so they're never evicted.
+ */
+class HlsSegmenter {
+
+    /**
+     * Segments that have left the playlist, but can still be requested by players that loaded it just before
+     */
+    private static final int GRACE_SEGMENTS = 3;
+    private static final byte[] TIMESTAMP_OWNER = "com.apple.streaming.transportStreamTimestamp".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final String id;
+    private final long targetNanos;
+    private final int windowSize;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final Map<Long, Segment> bySequence = new ConcurrentHashMap<>();
+    private long nextSequence = 0;
+    private Segment current = null;
+    private volatile byte[] playlist = null;
+
+    /**
+     * @param id Prefix of the segment names, unique to this run of the station. Sequence numbers start over on
+     *           every restart, and segments are cached as immutable, so a name must never be reused
+     * @param targetSeconds Maximum duration of a segment
+     * @param windowSize Amount of segments in the playlist
+     */
+    HlsSegmenter(String id, int targetSeconds, int windowSize) {
+        this.id = id;
+        this.targetNanos = Math.max(1, targetSeconds) * 1_000_000_000L;
+        this.windowSize = Math.max(1, windowSize);
+    }
+
+    /**
+     * Add a frame that has been played. Frames must be added in order, by one thread at a time
+     * @param entry Cache entry the frame comes from
+     * @param file Segment file of the entry the frame is in
+     * @param offset Offset of the frame in the file
+     * @param length Length of the frame
+     * @param mediaNanos Media time the frame starts at
+     * @param durationNanos Duration of the frame
+     */
+    synchronized void append(CacheEntry entry, File file, long offset, int length, long mediaNanos, long durationNanos) {
+        if (current != null && (!current.file.equals(file) || current.offset + current.length != offset || current.durationNanos + durationNanos > targetNanos)) {
+            finish();
+        }
+        if (current == null) {
+            entry.retain();
+            current = new Segment(nextSequence++, entry, file, offset, mediaNanos);
+        }
+        current.length += length;
+        current.durationNanos += durationNanos;
+    }
+
+    /**
+     * Close the current segment early (When the track is skipped)
+     */
+    synchronized void cut() {
+        if (current != null) finish();
+    }
+
+    private void finish() {
+        segments.add(current);
+        bySequence.put(current.sequence, current);
+        current = null;
+        while (segments.size() > windowSize + GRACE_SEGMENTS) {
+            Segment removed = segments.poll();
+            bySequence.remove(removed.sequence);
+            removed.entry.release();
+        }
+        int skip = Math.max(0, segments.size() - windowSize);
+        long mediaSequence = -1;
+        long targetDuration = 1;
+        StringBuilder entries = new StringBuilder();
+        for (Segment segment : segments) {
+            if (skip-- > 0) continue;
+            if (mediaSequence == -1) mediaSequence = segment.sequence;
+            targetDuration = Math.max(targetDuration, (segment.durationNanos + 999_999_999L) / 1_000_000_000L);
+            entries.append(String.format(Locale.ROOT, "#EXTINF:%.3f,\n", segment.durationNanos / 1e9));
+            entries.append("hls/").append(id).append('-').append(segment.sequence).append(".aac\n");
+        }
+        StringBuilder builder = new StringBuilder();
+        builder.append("#EXTM3U\n");
+        builder.append("#EXT-X-VERSION:3\n");
+        builder.append("#EXT-X-TARGETDURATION:").append(targetDuration).append('\n');
+        builder.append("#EXT-X-MEDIA-SEQUENCE:").append(mediaSequence).append('\n');
+        builder.append(entries);
+        playlist = builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Release every segment
+     */
+    synchronized void clear() {
+        if (current != null) current.entry.release();
+        current = null;
+        for (Segment segment : segments) {
+            segment.entry.release();
+        }
+        segments.clear();
+        bySequence.clear();
+        playlist = null;
+    }
+
+    /**
+     * Get the live playlist
+     * @return Rendered playlist, or null if no segment is ready yet
+     */
+    byte[] getPlaylist() {
+        return playlist;
+    }
+
+    /**
+     * Get a segment that's in the playlist (Or has just left it)
+     * @param name Name of the segment, as in the playlist (Without the extension)
+     * @return The segment, or null if it's not available (anymore), or from an earlier run of the station
+     */
+    Segment getSegment(String name) {
+        int dash = name.lastIndexOf('-');
+        if (dash == -1 || !name.substring(0, dash).equals(id)) return null;
+        try {
+            return bySequence.get(Long.parseLong(name.substring(dash + 1)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static class Segment {
+        final long sequence;
+        final CacheEntry entry;
+        final File file;
+        final long offset;
+        final byte[] timestamp;
+        int length = 0;
+        long durationNanos = 0;
+
+        private Segment(long sequence, CacheEntry entry, File file, long offset, long mediaNanos) {
+            this.sequence = sequence;
+            this.entry = entry;
+            this.file = file;
+            this.offset = offset;
+            this.timestamp = timestampTag(mediaNanos);
+        }
+    }
+
+    /**
+     * Build the ID3 tag that packed audio segments start with, carrying the timestamp of the first frame
+     * @param mediaNanos Media time of the first frame
+     * @return ID3v2.4 tag with a single PRIV frame
+     */
+    static byte[] timestampTag(long mediaNanos) {
+        long timestamp = (mediaNanos / 1000 * 90 / 1000) & 0x1FFFFFFFFL; // 90 kHz, 33 bits
+        int frameSize = TIMESTAMP_OWNER.length + 1 + 8;
+        byte[] tag = new byte[10 + 10 + frameSize];
+        tag[0] = 'I';
+        tag[1] = 'D';
+        tag[2] = '3';
+        tag[3] = 4;
+        syncSafe(tag, 6, 10 + frameSize);
+        tag[10] = 'P';
+        tag[11] = 'R';
+        tag[12] = 'I';
+        tag[13] = 'V';
+        syncSafe(tag, 14, frameSize);
+        System.arraycopy(TIMESTAMP_OWNER, 0, tag, 20, TIMESTAMP_OWNER.length);
+        for (int i = 0; i < 8; i++) {
+            tag[tag.length - 1 - i] = (byte) (timestamp >>> (i * 8));
+        }
+        return tag;
+    }
+
+    private static void syncSafe(byte[] target, int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            target[offset + i] = (byte) ((value >>> ((3 - i) * 7)) & 0x7F);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package me.fan87.fanaaudio.station;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * The upcoming tracks of a station, scheduled ahead of time so they can be prepared before they're due. Shuffling
+ * deals from a shuffled copy of the library (Every track once per round), and never picks a track that has been
+ * played or scheduled within the no-repeat window, including across rounds.
+ * <p>
+ * Only used by the playout, which synchronizes on itself.
+ */
+class PlayQueue {
+
+    private final TrackLibrary library;
+    private final Deque<File> upcoming = new ArrayDeque<>();
+    private final Deque<File> recent = new ArrayDeque<>();
+    private List<File> round = new ArrayList<>(); // Dealt from the end
+
+    PlayQueue(TrackLibrary library) {
+        this.library = library;
+    }
+
+    /**
+     * Take the next track off the schedule
+     * @param shuffle If the schedule should be shuffled (Applies to tracks that haven't been scheduled yet)
+     * @param noRepeatWindow Amount of recent tracks that are never scheduled again
+     * @return The track, or null if the library is empty
+     */
+    File next(boolean shuffle, int noRepeatWindow) {
+        prune();
+        if (upcoming.isEmpty() && !schedule(shuffle, noRepeatWindow)) return null;
+        return upcoming.removeFirst();
+    }
+
+    /**
+     * Get the tracks that are due after the current one. Scheduled if they haven't been yet
+     * @param count Amount of tracks
+     * @param shuffle If the schedule should be shuffled
+     * @param noRepeatWindow Amount of recent tracks that are never scheduled again
+     * @return Upcoming tracks, next one first (Fewer if the library is empty)
+     */
+    List<File> peek(int count, boolean shuffle, int noRepeatWindow) {
+        prune();
+        while (upcoming.size() < count && schedule(shuffle, noRepeatWindow)) {
+        }
+        List<File> tracks = new ArrayList<>(count);
+        for (File track : upcoming) {
+            if (tracks.size() >= count) break;
+            tracks.add(track);
+        }
+        return tracks;
+    }
+
+    private void prune() {
+        upcoming.removeIf((track) -> !library.contains(track)); // Removed since it was scheduled
+    }
+
+    private boolean schedule(boolean shuffle, int noRepeatWindow) {
+        List<File> tracks = library.getTracks();
+        if (tracks.isEmpty()) return false;
+        round.removeIf((track) -> !library.contains(track));
+        if (round.isEmpty()) {
+            round = new ArrayList<>(tracks);
+            if (shuffle) {
+                Collections.shuffle(round);
+            } else {
+                Collections.reverse(round);
+            }
+        }
+        int window = shuffle ? Math.min(noRepeatWindow, tracks.size() - 1) : 0;
+        int pick = round.size() - 1;
+        if (window > 0) {
+            Set<File> blocked = new HashSet<>();
+            Iterator<File> iterator = recent.descendingIterator();
+            while (blocked.size() < window && iterator.hasNext()) {
+                blocked.add(iterator.next());
+            }
+            while (pick > 0 && blocked.contains(round.get(pick))) {
+                pick--;
+            }
+        }
+        File track = round.remove(pick);
+        upcoming.addLast(track);
+        recent.addLast(track);
+        while (recent.size() > Math.max(noRepeatWindow, 1)) {
+            recent.removeFirst();
+        }
+        return true;
+    }
+}
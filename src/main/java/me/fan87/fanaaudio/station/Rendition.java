@@ -0,0 +1,32 @@
+package me.fan87.fanaaudio.station;
+
+import com.google.gson.annotations.Expose;
+
+/**
+ * One output quality of a station. Every rendition is AAC at 44.1 kHz stereo, only the bitrate differs
+ */
+public class Rendition {
+
+    @Expose
+    public String name = "256k";
+
+    @Expose
+    public Integer bitrate = 256000;
+
+    Rendition() {
+
+    }
+
+    public Rendition(String name, int bitrate) {
+        this.name = name;
+        this.bitrate = bitrate;
+    }
+
+    /**
+     * Get everything that affects the output of a transcode. Part of the cache key
+     * @return Encoding parameters
+     */
+    public String getParameters() {
+        return "aac;b=" + bitrate + ";sr=44100;ac=2;segment=300";
+    }
+}
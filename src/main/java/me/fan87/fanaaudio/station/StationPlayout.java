@@ -0,0 +1,263 @@
+package me.fan87.fanaaudio.station;
+
+import me.fan87.fanaaudio.FANARadio;
+import me.fan87.fanaaudio.configs.Config;
+import me.fan87.fanaaudio.stream.AdtsFrameReader;
+import me.fan87.fanaaudio.stream.AdtsHeader;
+import me.fan87.fanaaudio.stream.FramePacer;
+import me.fan87.fanaaudio.transcode.CacheEntry;
+import me.fan87.fanaaudio.transcode.TranscodeService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays the tracks of a station. Runs entirely on the shared scheduler of the radio: Every tick releases the frames
+ * that are due and schedules the next tick for when the next frame is due, and waiting for a transcode is a
+ * completion callback. A station that's waiting or idle costs no thread and no CPU.
+ * <p>
+ * The first rendition drives the pacing. Every rendition is encoded from the same decode, so they have the same
+ * frames, and the n-th frame of every other rendition is released together with the n-th frame of the first one.
+ */
+class StationPlayout {
+
+    private static final long WATCHDOG_TIMEOUT = 10000;
+
+    private final FANARadio radio;
+    private final AudioStation station;
+    private final TrackLibrary library;
+    private final FramePacer pacer = new FramePacer();
+
+    private final PlayQueue queue;
+    private volatile CompletableFuture<List<CacheEntry>> pending = null; // Read by the watchdog without the lock
+    private Cursor[] cursors = null;
+    private ScheduledFuture<?> tick = null;
+    private ScheduledFuture<?> watchdog = null;
+    private boolean running = false;
+    private volatile boolean idle = false;
+
+    private volatile long lastSentTime = System.currentTimeMillis();
+    private volatile File currentTrack = null;
+    private volatile long trackStartNanos = 0;
+
+    StationPlayout(FANARadio radio, AudioStation station, TrackLibrary library) {
+        this.radio = radio;
+        this.station = station;
+        this.library = library;
+        this.queue = new PlayQueue(library);
+    }
+
+    /**
+     * Start playing
+     */
+    synchronized void start() {
+        running = true;
+        watchdog = radio.getScheduler().scheduleWithFixedDelay(this::checkWatchdog, 1, 1, TimeUnit.SECONDS);
+        nextTrack();
+    }
+
+    /**
+     * Stop playing, and cancel every transcode the station is waiting for
+     */
+    synchronized void stop() {
+        running = false;
+        if (tick != null) tick.cancel(false);
+        if (watchdog != null) watchdog.cancel(false);
+        releaseTrack();
+        radio.getTranscodeService().cancel(station);
+    }
+
+    /**
+     * Skip the current track
+     */
+    synchronized void skip() {
+        if (!running) return;
+        if (tick != null) tick.cancel(false);
+        nextTrack();
+    }
+
+    /**
+     * Start playing again if the station ran out of tracks. Tracks that have been added join the next round of the schedule
+     */
+    synchronized void onLibraryChanged() {
+        if (running && idle) nextTrack();
+    }
+
+    private void nextTrack() {
+        releaseTrack();
+        Config config = radio.getConfigsManager().getConfig();
+        File track = queue.next(config.shuffle, config.noRepeatWindow);
+        if (track == null) {
+            if (!idle) radio.getLogger().warn(String.format("[%s]  No track to play", station.namespace));
+            idle = true;
+            return;
+        }
+        idle = false;
+        CompletableFuture<List<CacheEntry>> future = radio.getTranscodeService().submit(station, track, TranscodeService.Priority.URGENT);
+        for (File upcoming : queue.peek(config.transcodeLookahead, config.shuffle, config.noRepeatWindow)) { // Prepared while this one plays
+            radio.getTranscodeService().submit(station, upcoming, TranscodeService.Priority.LOOKAHEAD);
+        }
+        pending = future;
+        future.whenComplete((entries, error) -> radio.getScheduler().execute(() -> onTrackReady(future, track, entries, error))); // Queued even if it's prepared already, so a run of empty tracks can't recurse
+    }
+
+    private synchronized void onTrackReady(CompletableFuture<List<CacheEntry>> future, File track, List<CacheEntry> entries, Throwable error) {
+        if (!running || pending != future) return; // Skipped or stopped while waiting
+        pending = null;
+        if (error != null) {
+            station.countTrackError();
+            radio.getLogger().error(String.format("[%s]  Failed to play track %s: %s", station.namespace, track.getName(), error.getMessage()));
+            radio.getScheduler().schedule(this::skip, 1, TimeUnit.SECONDS); // Don't spin if every track fails
+            return;
+        }
+        cursors = new Cursor[entries.size()];
+        for (int i = 0; i < cursors.length; i++) {
+            entries.get(i).retain();
+            cursors[i] = new Cursor(i, entries.get(i));
+        }
+        currentTrack = track;
+        station.setNowPlaying(track);
+        trackStartNanos = pacer.getMediaNanos();
+        lastSentTime = System.currentTimeMillis();
+        radio.getLogger().info(String.format("[%s]  Started playing track: %s", station.namespace, track.getName()));
+        tick();
+    }
+
+    /**
+     * Release every frame that's due, then schedule the next tick
+     */
+    private synchronized void tick() {
+        if (!running || cursors == null) return;
+        try {
+            while (true) {
+                AdtsHeader header = cursors[0].peek();
+                if (header == null) {
+                    nextTrack();
+                    return;
+                }
+                long delay = pacer.getDelayNanos();
+                if (delay > 0) {
+                    tick = radio.getScheduler().schedule(this::tick, delay, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                long mediaNanos = pacer.getMediaNanos();
+                pacer.advance(header);
+                cursors[0].release(header, mediaNanos);
+                for (int i = 1; i < cursors.length; i++) {
+                    AdtsHeader other = cursors[i].peek();
+                    if (other != null) cursors[i].release(other, mediaNanos);
+                }
+                lastSentTime = System.currentTimeMillis();
+            }
+        } catch (IOException e) {
+            station.countTrackError();
+            radio.getLogger().error(String.format("[%s]  Failed to play track %s: %s", station.namespace, currentTrack.getName(), e.getMessage()));
+            nextTrack();
+        }
+    }
+
+    private void releaseTrack() {
+        if (cursors == null) return;
+        for (Cursor cursor : cursors) {
+            station.getHls(cursor.rendition).cut(); // Publish the end of the track right away
+            cursor.entry.release();
+        }
+        cursors = null;
+    }
+
+    /**
+     * Skip the track if nothing has been sent for a while, unless the station is waiting for a transcode
+     */
+    private void checkWatchdog() {
+        if (pending != null || idle) {
+            lastSentTime = System.currentTimeMillis();
+            return;
+        }
+        long timeout = System.currentTimeMillis() - lastSentTime;
+        if (timeout > WATCHDOG_TIMEOUT) {
+            lastSentTime = System.currentTimeMillis();
+            station.countWatchdogSkip();
+            radio.getLogger().error(String.format("[%s]  Send Timeout (%sms > %sms) Skipping Song...", station.namespace, timeout, WATCHDOG_TIMEOUT));
+            skip();
+        }
+    }
+
+    /**
+     * Walks the frames of one rendition of the current track, segment by segment
+     */
+    private class Cursor {
+        private final int rendition;
+        private final CacheEntry entry;
+        private final List<File> segments;
+        private int segmentIndex = -1;
+        private ByteBuffer segment = null;
+
+        private Cursor(int rendition, CacheEntry entry) {
+            this.rendition = rendition;
+            this.entry = entry;
+            this.segments = entry.getSegments();
+        }
+
+        /**
+         * Find the next frame, skipping anything that's not a valid frame
+         * @return Header of the next frame, or null if the track has ended
+         */
+        private AdtsHeader peek() throws IOException {
+            while (true) {
+                if (segment == null || segment.remaining() < AdtsFrameReader.HEADER_SIZE) {
+                    if (!openNextSegment()) return null;
+                    continue;
+                }
+                int offset = segment.position();
+                AdtsHeader header = AdtsHeader.parse(segment, offset);
+                if (header == null || header.getFrameLength() > segment.remaining()) {
+                    segment.position(offset + 1); // Corrupted or cut off, look for next sync word
+                    continue;
+                }
+                return header;
+            }
+        }
+
+        /**
+         * Publish the frame that has just been peeked
+         */
+        private void release(AdtsHeader header, long mediaNanos) {
+            int offset = segment.position();
+            station.getHls(rendition).append(entry, segments.get(segmentIndex), offset, header.getFrameLength(), mediaNanos, header.getDurationNanos());
+            station.sendData(rendition, segment, offset, header.getFrameLength());
+            segment.position(offset + header.getFrameLength());
+        }
+
+        private boolean openNextSegment() throws IOException {
+            segmentIndex++;
+            if (segmentIndex >= segments.size()) return false;
+            segment = radio.getSegmentStore().get(segments.get(segmentIndex));
+            if (segmentIndex + 1 < segments.size()) {
+                radio.getSegmentStore().prefetch(segments.get(segmentIndex + 1));
+            } else {
+                Config config = radio.getConfigsManager().getConfig();
+                for (File upcoming : queue.peek(1, config.shuffle, config.noRepeatWindow)) { // Map the start of the next track before it's due
+                    radio.getTranscodeService().submit(station, upcoming, TranscodeService.Priority.LOOKAHEAD).thenAccept((next) -> radio.getSegmentStore().prefetch(next.get(rendition).getSegments().get(0)));
+                }
+            }
+            return true;
+        }
+    }
+
+    File getCurrentTrack() {
+        return currentTrack;
+    }
+
+    /**
+     * Get how far into the current track the station is
+     * @return Position in milliseconds
+     */
+    long getTrackPosition() {
+        return (pacer.getMediaNanos() - trackStartNanos) / 1_000_000L;
+    }
+}
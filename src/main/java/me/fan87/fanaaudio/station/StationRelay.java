@@ -0,0 +1,157 @@
+package me.fan87.fanaaudio.station;
+
+import me.fan87.fanaaudio.FANARadio;
+import me.fan87.fanaaudio.stream.AdtsFrameReader;
+import me.fan87.fanaaudio.stream.Broadcast;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds a station from the stream of another FANARadio (The origin) instead of local tracks, so the listeners can be
+ * spread over several edge servers. Every rendition has its own connection, reading the origin's rendition of the
+ * same name, and its frames are published to the local broadcast as they arrive (The origin does the pacing).
+ * <p>
+ * The origin tells where in its stream the response starts ({@code X-Stream-Position}), so after a disconnect the
+ * relay asks to continue right after the last complete frame it has received ({@code ?from=}), and listeners of
+ * the edge don't miss anything as long as the origin still has it buffered.
+ */
+class StationRelay {
+
+    private static final long MIN_BACKOFF = 500;
+    private static final long MAX_BACKOFF = 30000;
+
+    private final FANARadio radio;
+    private final AudioStation station;
+    private final String origin;
+    private final OkHttpClient client = new OkHttpClient.Builder()
+            .connectTimeout(5, TimeUnit.SECONDS)
+            .readTimeout(10, TimeUnit.SECONDS) // The origin sends a frame every ~23ms, silence means it's gone
+            .build();
+    private final Call[] calls;
+    private volatile boolean running = false;
+
+    StationRelay(FANARadio radio, AudioStation station) {
+        this.radio = radio;
+        this.station = station;
+        this.origin = station.relay.endsWith("/") ? station.relay : station.relay + "/";
+        this.calls = new Call[station.getRenditions().size()];
+    }
+
+    /**
+     * Connect to the origin, one thread per rendition
+     */
+    void start() {
+        running = true;
+        List<Rendition> renditions = station.getRenditions();
+        for (int i = 0; i < renditions.size(); i++) {
+            int rendition = i;
+            Thread thread = new Thread(() -> relay(rendition), "Relay Thread (" + station.namespace + "/" + renditions.get(i).name + ")");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Disconnect from the origin
+     */
+    void stop() {
+        running = false;
+        synchronized (calls) {
+            for (Call call : calls) {
+                if (call != null) call.cancel();
+            }
+        }
+    }
+
+    private void relay(int rendition) {
+        String name = station.getRenditions().get(rendition).name;
+        Broadcast broadcast = station.getBroadcast(rendition);
+        byte[] frame = new byte[AdtsFrameReader.MAX_FRAME_SIZE];
+        String streamId = null;
+        long position = 0;
+        long backoff = MIN_BACKOFF;
+        while (running) {
+            String url = origin + name + "/radio.aac" + (streamId == null ? "" : "?id=" + streamId + "&from=" + position);
+            Call call = client.newCall(new Request.Builder().url(url).build());
+            synchronized (calls) {
+                if (!running) return;
+                calls[rendition] = call;
+            }
+            try (Response response = call.execute()) {
+                ResponseBody body = response.body();
+                if (!response.isSuccessful() || body == null) throw new IOException("HTTP " + response.code());
+                String id = response.header("X-Stream-Id");
+                long start = parsePosition(response.header("X-Stream-Position"));
+                if (streamId == null) {
+                    radio.getLogger().info(String.format("[%s]  Relaying %s from %s", station.namespace, name, url));
+                } else if (!streamId.equals(id)) {
+                    radio.getLogger().warn(String.format("[%s]  Origin has restarted, %s continues from its live edge", station.namespace, name));
+                } else if (start != position) {
+                    radio.getLogger().warn(String.format("[%s]  Resumed %s with a gap of %s bytes (No longer buffered by the origin)", station.namespace, name, start - position));
+                } else {
+                    radio.getLogger().info(String.format("[%s]  Resumed %s without a gap", station.namespace, name));
+                }
+                streamId = start == -1 ? null : id; // An origin that doesn't tell positions can't resume
+                position = start;
+                CountingInputStream input = new CountingInputStream(body.byteStream());
+                AdtsFrameReader reader = new AdtsFrameReader(input);
+                int length;
+                while ((length = reader.readFrame(frame)) != -1) {
+                    broadcast.publish(frame, 0, length);
+                    position = start + input.count; // Only complete frames count, a cut off frame is asked for again
+                    backoff = MIN_BACKOFF;
+                }
+                radio.getLogger().warn(String.format("[%s]  Origin has closed the stream of %s", station.namespace, name));
+            } catch (IOException e) {
+                if (!running) return;
+                radio.getLogger().warn(String.format("[%s]  Lost the origin of %s (%s), reconnecting in %sms", station.namespace, name, e.getMessage(), backoff));
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    private static long parsePosition(String header) {
+        if (header == null) return -1;
+        try {
+            return Long.parseLong(header);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        private CountingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != -1) count++;
+            return read;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) count += read;
+            return read;
+        }
+    }
+}
@@ -1,56 +1,200 @@
 package me.fan87.fanaaudio.station;
 
-import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import me.fan87.fanaaudio.FANARadio;
+import me.fan87.fanaaudio.configs.Config;
+import me.fan87.fanaaudio.server.StaticResponse;
 
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 public class StationsManager {
 
-    public List<AudioStation> stations = new ArrayList<>();
+    private static final long DRAIN_TIMEOUT = 10000;
+
+    public List<AudioStation> stations = new CopyOnWriteArrayList<>();
+    private volatile StaticResponse index = null;
+    private volatile StaticResponse directory = null;
 
     public StationsManager(FANARadio radio) {
-        stations.addAll(radio.getConfigsManager().getConfig().stations);
-        List<String> names = new ArrayList<>();
-        for (AudioStation station : stations) {
-            if (names.contains(station.namespace)) {
-                radio.getLogger().warn("Station: " + station.namespace + " has duplicated name. Ignoring");
-                continue;
-            }
-            names.add(station.namespace);
+        for (AudioStation station : uniqueStations(radio).values()) {
+            if (!fitsBufferBudget(radio, station, stations)) continue;
+            stations.add(station);
             station.registerHandlers(radio);
             station.startServicing(radio);
         }
+        refresh(radio);
         radio.getServer().createContext("/", exchange -> {
-            StringBuilder builder = new StringBuilder();
-            builder.append(String.format("" +
-                    "<!DOCTYPE html>\n" +
-                    "<html>\n" +
-                    "<head>\n" +
-                    "<meta charset=\"UTF-8\">\n" +
-                    String.format("<title>%s</title>\n", radio.getConfigsManager().getConfig().stationName) +
-                    "</head>\n" +
-                    "<body>\n" +
-                    "<h1>%s</h1>\n", radio.getConfigsManager().getConfig().stationName) +
-                    String.format("<h2>%s</h2>\n", radio.getConfigsManager().getConfig().radioIndexSubtitle) +
-                    String.format("<p>%s</p>\n", radio.getConfigsManager().getConfig().radioIndexHint));
-            for (AudioStation station : radio.getStationsManager().stations) {
-                builder.append(String.format("\n<li><a href=\"%s\">%s</a>  (<a href=\"%s\">M3U</a> | <a href=\"%s\">AAC</a>) </li>",
-                        "/" + station.namespace + "/radio.aac", station.name, "/" + station.namespace + "/radio.m3u", "/" + station.namespace + "/radio.aac"));
+            if (exchange.getPath().equals("/stations.json")) {
+                directory.send(exchange);
+                return;
             }
-            builder.append("</body>\n");
-            builder.append("</html>\n");
-            String text = builder.toString();
-            exchange.getResponseHeaders().add("Content-Type", "text/html");
-            exchange.sendResponseHeaders(200, text.getBytes(StandardCharsets.UTF_8).length);
-            exchange.getResponseBody().write(text.getBytes(StandardCharsets.UTF_8));
-            exchange.getResponseBody().flush();
-            exchange.getResponseBody().close();
+            index.send(exchange);
         });
     }
 
+    private static Map<String, AudioStation> uniqueStations(FANARadio radio) {
+        Map<String, AudioStation> stations = new LinkedHashMap<>();
+        for (AudioStation station : radio.getConfigsManager().getConfig().stations) {
+            if (stations.containsKey(station.namespace)) {
+                radio.getLogger().warn("Station: " + station.namespace + " has duplicated name. Ignoring");
+                continue;
+            }
+            stations.put(station.namespace, station);
+        }
+        return stations;
+    }
+
+    /**
+     * Bring the running stations in line with the config, after it has been reloaded. New stations are started,
+     * removed stations are stopped and drained, and stations whose renditions changed are restarted. Stations that
+     * only got a new name or owner keep playing
+     * @param radio Radio instance
+     */
+    public synchronized void reload(FANARadio radio) {
+        Map<String, AudioStation> configured = uniqueStations(radio);
+        for (AudioStation station : stations) {
+            AudioStation updated = configured.get(station.namespace);
+            if (updated != null && station.isSameOutput(updated)) {
+                configured.put(station.namespace, station);
+                station.updateInfo(updated);
+                continue;
+            }
+            radio.getLogger().info(String.format("[%s]  %s", station.namespace, updated == null ? "Removed from the config, stopping" : "Renditions changed, restarting"));
+            removeStation(radio, station);
+        }
+        List<AudioStation> ordered = new ArrayList<>();
+        for (AudioStation station : configured.values()) {
+            if (!stations.contains(station)) {
+                if (!fitsBufferBudget(radio, station, configured.values())) continue; // Kept and already started ones
+                radio.getLogger().info(String.format("[%s]  Starting", station.namespace));
+                station.registerHandlers(radio);
+                station.startServicing(radio);
+            }
+            ordered.add(station);
+        }
+        stations.removeIf((station) -> !ordered.contains(station)); // Never empty the list, requests are reading it
+        for (AudioStation station : ordered) {
+            if (!stations.contains(station)) stations.add(station);
+        }
+        refresh(radio);
+    }
+
+    private static boolean fitsBufferBudget(FANARadio radio, AudioStation station, Collection<AudioStation> running) {
+        Config config = radio.getConfigsManager().getConfig();
+        long used = 0;
+        for (AudioStation other : running) {
+            used += other.getBufferBytes();
+        }
+        long required = station.getRequiredBufferBytes(config);
+        if (used + required <= config.maxBufferBytes) return true;
+        radio.getLogger().error(String.format("[%s]  Not started: Its stream buffers need %s KiB, but only %s KiB of maxBufferBytes is left", station.namespace, required / 1024, Math.max(0, config.maxBufferBytes - used) / 1024));
+        return false;
+    }
+
+    private void removeStation(FANARadio radio, AudioStation station) {
+        station.unregisterHandlers(radio);
+        station.stopServicing(radio);
+        drain(radio, station, System.currentTimeMillis() + DRAIN_TIMEOUT);
+    }
+
+    /**
+     * Let listeners of a stopped station receive what they have queued, then disconnect them
+     */
+    private void drain(FANARadio radio, AudioStation station, long deadline) {
+        radio.getScheduler().schedule(() -> {
+            boolean force = System.currentTimeMillis() >= deadline;
+            if (station.closeListeners(force) > 0 && !force) {
+                drain(radio, station, deadline);
+            }
+        }, 500, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Render the index page and the station directory again. Must be called whenever the config or the stations change
+     * @param radio Radio instance
+     */
+    public void refresh(FANARadio radio) {
+        Config config = radio.getConfigsManager().getConfig();
+        index = keepIfSame(index, StaticResponse.of(renderIndex(config, stations), "text/html; charset=utf-8", "no-cache")); // Always revalidate, a 304 is cheap
+        directory = keepIfSame(directory, StaticResponse.of(renderDirectory(stations), "application/json; charset=utf-8", "no-cache"));
+    }
+
+    private static StaticResponse keepIfSame(StaticResponse previous, StaticResponse rendered) {
+        return previous != null && previous.getEtag().equals(rendered.getEtag()) ? previous : rendered; // Keep Last-Modified
+    }
+
+    /**
+     * Get the rendered index page
+     * @return The index page
+     */
+    public StaticResponse getIndex() {
+        return index;
+    }
+
+    /**
+     * Render the station directory for apps, as JSON
+     * @param stations Stations to list
+     * @return The directory
+     */
+    public static String renderDirectory(List<AudioStation> stations) {
+        JsonArray array = new JsonArray();
+        for (AudioStation station : stations) {
+            JsonObject object = new JsonObject();
+            object.addProperty("namespace", station.namespace);
+            object.addProperty("name", station.name);
+            object.addProperty("owner", station.owner);
+            object.addProperty("stream", "/" + station.namespace + "/radio.aac");
+            object.addProperty("m3u", "/" + station.namespace + "/radio.m3u");
+            object.addProperty("hls", "/" + station.namespace + "/radio.m3u8");
+            JsonArray renditions = new JsonArray();
+            for (Rendition rendition : station.getRenditions()) {
+                JsonObject renditionObject = new JsonObject();
+                renditionObject.addProperty("name", rendition.name);
+                renditionObject.addProperty("bitrate", rendition.bitrate);
+                renditionObject.addProperty("stream", "/" + station.namespace + "/" + rendition.name + "/radio.aac");
+                renditionObject.addProperty("hls", "/" + station.namespace + "/" + rendition.name + "/radio.m3u8");
+                renditions.add(renditionObject);
+            }
+            object.add("renditions", renditions);
+            array.add(object);
+        }
+        return new Gson().toJson(array);
+    }
+
+    /**
+     * Render the HTML page that lists every station
+     * @param config The config
+     * @param stations Stations to list
+     * @return The page
+     */
+    public static String renderIndex(Config config, List<AudioStation> stations) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("" +
+                "<!DOCTYPE html>\n" +
+                "<html>\n" +
+                "<head>\n" +
+                "<meta charset=\"UTF-8\">\n" +
+                String.format("<title>%s</title>\n", config.stationName) +
+                "</head>\n" +
+                "<body>\n" +
+                "<h1>%s</h1>\n", config.stationName) +
+                String.format("<h2>%s</h2>\n", config.radioIndexSubtitle) +
+                String.format("<p>%s</p>\n", config.radioIndexHint));
+        for (AudioStation station : stations) {
+            builder.append(String.format("\n<li><a href=\"%s\">%s</a>  (<a href=\"%s\">M3U</a> | <a href=\"%s\">AAC</a> | <a href=\"%s\">HLS</a>) </li>",
+                    "/" + station.namespace + "/radio.aac", station.name, "/" + station.namespace + "/radio.m3u", "/" + station.namespace + "/radio.aac", "/" + station.namespace + "/radio.m3u8"));
+        }
+        builder.append("</body>\n");
+        builder.append("</html>\n");
+        return builder.toString();
+    }
+
 }
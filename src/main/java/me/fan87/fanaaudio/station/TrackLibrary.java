@@ -0,0 +1,208 @@
+package me.fan87.fanaaudio.station;
+
+import me.fan87.fanaaudio.FANARadio;
+import me.fan87.fanaaudio.transcode.TranscodeService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The tracks of a station, kept up to date by watching tracks/&lt;namespace&gt;. The folder is listed once, after
+ * that only the files that changed are looked at. Readers get an immutable snapshot that's replaced (Never changed)
+ * on every update, so the playout never waits for the watcher, and the schedule never sees a half-applied update.
+ */
+public class TrackLibrary {
+
+    private static final long QUIET_MILLIS = 1000;
+    private static final Comparator<File> ORDER = Comparator.comparingInt((File file) -> extractNumber(file.getName())).thenComparing(File::getName);
+
+    private final FANARadio radio;
+    private final AudioStation station;
+    private final File folder;
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyList());
+    private WatchService watchService = null;
+
+    TrackLibrary(FANARadio radio, AudioStation station) {
+        this.radio = radio;
+        this.station = station;
+        this.folder = new File("tracks/" + station.namespace);
+    }
+
+    /**
+     * Index the folder and start watching it, on a thread of its own
+     * @param changeHandler Called on the watcher thread after the first index, and after every change
+     */
+    synchronized void start(Runnable changeHandler) {
+        if (!folder.isDirectory()) {
+            folder.delete();
+            folder.mkdirs();
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            folder.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            radio.getLogger().error(String.format("[%s]  Failed to watch %s, new tracks won't be picked up: %s", station.namespace, folder, e.getMessage()));
+        }
+        WatchService watchService = this.watchService;
+        Thread thread = new Thread(() -> {
+            rescan(); // After registering, so nothing that's added in between is missed
+            radio.getLogger().info(String.format("[%s]  Indexed %s tracks", station.namespace, snapshot.tracks.size()));
+            changeHandler.run();
+            if (watchService == null) return;
+            try {
+                while (true) {
+                    WatchKey key = watchService.take();
+                    Set<String> changed = new HashSet<>();
+                    boolean overflow = collect(key, changed);
+                    while ((key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) { // Uploads write in many steps, wait until it's quiet
+                        overflow |= collect(key, changed);
+                    }
+                    if (overflow ? rescan() : apply(changed)) {
+                        changeHandler.run();
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException ignored) {
+            }
+        }, "Track Watcher (" + station.namespace + ")");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop watching the folder
+     */
+    synchronized void stop() {
+        if (watchService == null) return;
+        try {
+            watchService.close();
+        } catch (IOException ignored) {}
+        watchService = null;
+    }
+
+    private static boolean collect(WatchKey key, Set<String> changed) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            } else {
+                changed.add(event.context().toString());
+            }
+        }
+        key.reset();
+        return overflow;
+    }
+
+    /**
+     * Look at the files that have changed
+     * @return If the library has changed
+     */
+    private boolean apply(Set<String> changed) {
+        Snapshot current = snapshot;
+        List<File> added = new ArrayList<>();
+        List<File> removed = new ArrayList<>();
+        for (String name : changed) {
+            File file = new File(folder, name);
+            boolean known = current.members.contains(file);
+            if (!isTrack(file)) {
+                if (known) removed.add(file);
+            } else if (!known) {
+                added.add(file);
+            } else { // Replaced or rewritten. The cache is keyed by content, so it's a new transcode
+                radio.getLogger().info(String.format("[%s]  %s has changed, preparing it again", station.namespace, file.getName()));
+                radio.getTranscodeService().forget(station, file);
+                radio.getTranscodeService().submit(station, file, TranscodeService.Priority.BACKGROUND);
+            }
+        }
+        return update(added, removed);
+    }
+
+    /**
+     * List the whole folder, when the events can't be trusted (Startup, or the watcher fell behind)
+     * @return If the library has changed
+     */
+    private boolean rescan() {
+        File[] files = folder.listFiles();
+        Set<File> listed = new HashSet<>();
+        if (files != null) {
+            for (File file : files) {
+                if (isTrack(file)) listed.add(file);
+            }
+        }
+        Snapshot current = snapshot;
+        List<File> added = new ArrayList<>();
+        for (File file : listed) {
+            if (!current.members.contains(file)) added.add(file);
+        }
+        List<File> removed = new ArrayList<>();
+        for (File file : current.tracks) {
+            if (!listed.contains(file)) removed.add(file);
+        }
+        return update(added, removed);
+    }
+
+    private boolean update(List<File> added, List<File> removed) {
+        if (added.isEmpty() && removed.isEmpty()) return false;
+        Set<File> removedSet = new HashSet<>(removed);
+        List<File> tracks = new ArrayList<>(snapshot.tracks.size() + added.size());
+        for (File file : snapshot.tracks) {
+            if (!removedSet.contains(file)) tracks.add(file);
+        }
+        tracks.addAll(added);
+        tracks.sort(ORDER);
+        snapshot = new Snapshot(tracks);
+        for (File file : removed) {
+            radio.getLogger().info(String.format("[%s]  Removed %s from Track List", station.namespace, file.getName()));
+            radio.getTranscodeService().forget(station, file);
+        }
+        added.sort(ORDER);
+        for (File file : added) {
+            if (added.size() <= 100) { // Don't flood the log with a whole library
+                radio.getLogger().info(String.format("[%s]  Added %s to Track List", station.namespace, file.getName()));
+            }
+            radio.getTranscodeService().submit(station, file, TranscodeService.Priority.BACKGROUND); // The playout raises the priority when it's due
+        }
+        return true;
+    }
+
+    private static boolean isTrack(File file) {
+        return file.isFile() && !file.getName().startsWith("."); // Hidden files are usually uploads in progress
+    }
+
+    private static int extractNumber(String name) {
+        try {
+            return Integer.parseInt(name.split("_")[0]);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Get the tracks, ordered by their number prefix
+     * @return Immutable snapshot of the tracks
+     */
+    public List<File> getTracks() {
+        return snapshot.tracks;
+    }
+
+    /**
+     * Check if a track is still in the library
+     * @param track The track
+     * @return If it hasn't been removed
+     */
+    public boolean contains(File track) {
+        return snapshot.members.contains(track);
+    }
+
+    private static class Snapshot {
+        private final List<File> tracks;
+        private final Set<File> members;
+
+        private Snapshot(List<File> tracks) {
+            this.tracks = Collections.unmodifiableList(tracks);
+            this.members = Collections.unmodifiableSet(new HashSet<>(tracks));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package me.fan87.fanaaudio.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads an ADTS (AAC) stream frame by frame, so frames can be sent as a whole instead of byte by byte
+ */
+public class AdtsFrameReader {
+
+    public static final int HEADER_SIZE = 7;
+    public static final int MAX_FRAME_SIZE = 8191;
+
+    private final InputStream inputStream;
+    private AdtsHeader header = null;
+
+    public AdtsFrameReader(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Read the next frame (Header included) into the array
+     * @param frame Target array. Must be at least {@link #MAX_FRAME_SIZE} long
+     * @return Length of the frame, or -1 if the stream has ended
+     * @throws IOException If the stream failed to read
+     */
+    public int readFrame(byte[] frame) throws IOException {
+        while (true) {
+            if (!readSync(frame)) return -1;
+            if (!readFully(frame, 2, HEADER_SIZE - 2)) return -1;
+            AdtsHeader header = AdtsHeader.parse(frame, 0);
+            if (header == null) {
+                continue; // Corrupted header, look for next sync word
+            }
+            if (!readFully(frame, HEADER_SIZE, header.getFrameLength() - HEADER_SIZE)) return -1;
+            this.header = header;
+            return header.getFrameLength();
+        }
+    }
+
+    /**
+     * Get the header of the last frame read
+     * @return The header, or null if no frame has been read
+     */
+    public AdtsHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Skip bytes until the ADTS sync word (0xFFF) is found
+     */
+    private boolean readSync(byte[] frame) throws IOException {
+        int previous = inputStream.read();
+        if (previous == -1) return false;
+        int current;
+        while ((current = inputStream.read()) != -1) {
+            if (previous == 0xFF && (current & 0xF6) == 0xF0) {
+                frame[0] = (byte) previous;
+                frame[1] = (byte) current;
+                return true;
+            }
+            previous = current;
+        }
+        return false;
+    }
+
+    private boolean readFully(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = inputStream.read(bytes, offset, length);
+            if (read == -1) return false;
+            offset += read;
+            length -= read;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,127 @@
+package me.fan87.fanaaudio.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parsed ADTS frame header (The fixed + variable part, without CRC)
+ */
+public class AdtsHeader {
+
+    private static final int[] SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+    public static final int SAMPLES_PER_BLOCK = 1024;
+
+    private final int profile;
+    private final int sampleRateIndex;
+    private final int channelConfig;
+    private final int frameLength;
+    private final int rawDataBlocks;
+    private final boolean protectionAbsent;
+
+    private AdtsHeader(int profile, int sampleRateIndex, int channelConfig, int frameLength, int rawDataBlocks, boolean protectionAbsent) {
+        this.profile = profile;
+        this.sampleRateIndex = sampleRateIndex;
+        this.channelConfig = channelConfig;
+        this.frameLength = frameLength;
+        this.rawDataBlocks = rawDataBlocks;
+        this.protectionAbsent = protectionAbsent;
+    }
+
+    /**
+     * Check if there's an ADTS sync word at the offset
+     * @param data Data
+     * @param offset Offset of the header
+     * @return If the sync word matches
+     */
+    public static boolean isSync(byte[] data, int offset) {
+        return (data[offset] & 0xFF) == 0xFF && (data[offset + 1] & 0xF6) == 0xF0;
+    }
+
+    /**
+     * Parse a header
+     * @param data Data that contains at least 7 bytes starting from the offset
+     * @param offset Offset of the header
+     * @return Parsed header, or null if it's not a valid ADTS header
+     */
+    public static AdtsHeader parse(byte[] data, int offset) {
+        return parse(data[offset], data[offset + 1], data[offset + 2], data[offset + 3], data[offset + 4], data[offset + 5], data[offset + 6]);
+    }
+
+    /**
+     * Parse a header without changing the position of the buffer
+     * @param data Buffer that contains at least 7 bytes starting from the offset
+     * @param offset Absolute offset of the header
+     * @return Parsed header, or null if it's not a valid ADTS header
+     */
+    public static AdtsHeader parse(ByteBuffer data, int offset) {
+        return parse(data.get(offset), data.get(offset + 1), data.get(offset + 2), data.get(offset + 3), data.get(offset + 4), data.get(offset + 5), data.get(offset + 6));
+    }
+
+    private static AdtsHeader parse(byte b0, byte b1, byte b2, byte b3, byte b4, byte b5, byte b6) {
+        if ((b0 & 0xFF) != 0xFF || (b1 & 0xF6) != 0xF0) return null;
+        boolean protectionAbsent = (b1 & 0x01) == 1;
+        int profile = ((b2 & 0xC0) >>> 6) + 1;
+        int sampleRateIndex = (b2 & 0x3C) >>> 2;
+        int channelConfig = ((b2 & 0x01) << 2) | ((b3 & 0xC0) >>> 6);
+        int frameLength = ((b3 & 0x03) << 11) | ((b4 & 0xFF) << 3) | ((b5 & 0xE0) >>> 5);
+        int rawDataBlocks = (b6 & 0x03) + 1;
+        if (sampleRateIndex >= SAMPLE_RATES.length) return null;
+        if (frameLength < (protectionAbsent ? 7 : 9)) return null;
+        return new AdtsHeader(profile, sampleRateIndex, channelConfig, frameLength, rawDataBlocks, protectionAbsent);
+    }
+
+    /**
+     * Get the audio object type (1 = AAC Main, 2 = AAC LC, ...)
+     * @return Profile
+     */
+    public int getProfile() {
+        return profile;
+    }
+
+    public int getSampleRateIndex() {
+        return sampleRateIndex;
+    }
+
+    /**
+     * Get the sample rate in Hz
+     * @return Sample rate
+     */
+    public int getSampleRate() {
+        return SAMPLE_RATES[sampleRateIndex];
+    }
+
+    /**
+     * Get the channel configuration (2 = Stereo)
+     * @return Channel configuration
+     */
+    public int getChannelConfig() {
+        return channelConfig;
+    }
+
+    /**
+     * Get the length of the whole frame, header included
+     * @return Frame length in bytes
+     */
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * Get the amount of samples (per channel) in this frame
+     * @return Sample count
+     */
+    public int getSamples() {
+        return rawDataBlocks * SAMPLES_PER_BLOCK;
+    }
+
+    /**
+     * Get the play time of this frame
+     * @return Duration in nanoseconds
+     */
+    public long getDurationNanos() {
+        return getSamples() * 1_000_000_000L / getSampleRate();
+    }
+
+    public boolean isProtectionAbsent() {
+        return protectionAbsent;
+    }
+}
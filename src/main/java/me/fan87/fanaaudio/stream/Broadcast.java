@@ -0,0 +1,155 @@
+package me.fan87.fanaaudio.stream;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * The output of a station: A {@link StreamBuffer} with the listeners reading from it. Frames are published once,
+ * and observers (The I/O threads of the server) are notified so they can deliver it to their own listeners.
+ */
+public class Broadcast {
+
+    private final StreamBuffer buffer;
+    private final String id = Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+    private final Set<Listener> listeners = ConcurrentHashMap.newKeySet();
+    private final List<Consumer<Broadcast>> observers = new CopyOnWriteArrayList<>();
+    private final LongAdder publishedFrames = new LongAdder();
+    private final LongAdder deliveredBytes = new LongAdder();
+    private final LongAdder droppedBytes = new LongAdder();
+
+    public Broadcast(int capacity) {
+        this.buffer = new StreamBuffer(capacity);
+    }
+
+    /**
+     * Publish a frame to every listener. Never waits for listeners
+     * @param frame Frame bytes
+     * @param offset Offset of the frame
+     * @param length Length of the frame
+     */
+    public void publish(byte[] frame, int offset, int length) {
+        buffer.write(frame, offset, length);
+        publishedFrames.increment();
+        for (Consumer<Broadcast> observer : observers) {
+            observer.accept(this);
+        }
+    }
+
+    /**
+     * Publish a frame to every listener. Never waits for listeners
+     * @param source Buffer containing the frame (Its position is not changed)
+     * @param offset Absolute offset of the frame
+     * @param length Length of the frame
+     */
+    public void publish(ByteBuffer source, int offset, int length) {
+        buffer.write(source, offset, length);
+        publishedFrames.increment();
+        for (Consumer<Broadcast> observer : observers) {
+            observer.accept(this);
+        }
+    }
+
+    /**
+     * Register an observer that will be called every time a frame is published (Once per observer)
+     * @param observer The observer
+     */
+    public void addObserver(Consumer<Broadcast> observer) {
+        if (!observers.contains(observer)) observers.add(observer);
+    }
+
+    /**
+     * Unregister an observer
+     * @param observer The observer
+     */
+    public void removeObserver(Consumer<Broadcast> observer) {
+        observers.remove(observer);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Disconnect listeners, used when the station is going away. Observers are notified so the I/O threads can clean
+     * up the connections
+     * @param caughtUpOnly Only disconnect listeners that have received everything that has been published
+     * @return Amount of listeners that are still connected
+     */
+    public int closeListeners(boolean caughtUpOnly) {
+        long head = buffer.getWritePosition();
+        for (Listener listener : listeners) {
+            if (!caughtUpOnly || listener.getPosition() >= head) listener.close();
+        }
+        for (Consumer<Broadcast> observer : observers) {
+            observer.accept(this);
+        }
+        return listeners.size();
+    }
+
+    /**
+     * Get the random ID of the broadcast. Positions in its buffer only mean something to clients that have seen the
+     * same ID, a restarted station has a new one
+     * @return The ID
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Get all listeners that are currently connected
+     * @return Live view of the listeners
+     */
+    public Set<Listener> getListeners() {
+        return listeners;
+    }
+
+    void countDelivered(long bytes) {
+        deliveredBytes.add(bytes);
+    }
+
+    void countDropped(long bytes) {
+        droppedBytes.add(bytes);
+    }
+
+    /**
+     * Get the amount of frames that have been published
+     * @return Frame count
+     */
+    public long getPublishedFrames() {
+        return publishedFrames.sum();
+    }
+
+    /**
+     * Get the amount of bytes sent to listeners, all listeners combined
+     * @return Delivered bytes
+     */
+    public long getDeliveredBytes() {
+        return deliveredBytes.sum();
+    }
+
+    /**
+     * Get the amount of bytes skipped because listeners were too slow, all listeners combined
+     * @return Dropped bytes
+     */
+    public long getDroppedBytes() {
+        return droppedBytes.sum();
+    }
+
+    /**
+     * Get the buffer the frames are written into
+     * @return The stream buffer
+     */
+    public StreamBuffer getBuffer() {
+        return buffer;
+    }
+}
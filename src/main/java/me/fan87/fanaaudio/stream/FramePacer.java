@@ -0,0 +1,55 @@
+package me.fan87.fanaaudio.stream;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when frames are due at real-time rate using the monotonic clock. Media time keeps counting across tracks,
+ * so frame durations never accumulate rounding drift. If playout falls far behind (Slow disk, long pause between
+ * tracks), the clock is re-anchored instead of bursting out everything that's late.
+ */
+public class FramePacer {
+
+    private static final long MAX_LATE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private long anchorNanos = -1;
+    private long mediaNanos = 0;
+    private volatile long totalMediaNanos = 0;
+    private int sampleRate = 0;
+    private long remainder = 0;
+
+    /**
+     * Get how long until the next frame is due
+     * @return Delay in nanoseconds, 0 or less if it's due now
+     */
+    public long getDelayNanos() {
+        long now = System.nanoTime();
+        if (anchorNanos == -1 || now - (anchorNanos + mediaNanos) > MAX_LATE_NANOS) {
+            anchorNanos = now; // First frame, or too late: start counting from now
+            mediaNanos = 0;
+        }
+        return anchorNanos + mediaNanos - now;
+    }
+
+    /**
+     * Account for a frame that has been released
+     * @param header Header of the frame
+     */
+    public void advance(AdtsHeader header) {
+        if (header.getSampleRate() != sampleRate) {
+            sampleRate = header.getSampleRate();
+            remainder = 0;
+        }
+        long duration = (header.getSamples() * 1_000_000_000L + remainder) / sampleRate; // Keep the sub-nanosecond rest, so it never drifts
+        remainder = (header.getSamples() * 1_000_000_000L + remainder) % sampleRate;
+        mediaNanos += duration;
+        totalMediaNanos += duration;
+    }
+
+    /**
+     * Get the total media time released by this pacer
+     * @return Media time in nanoseconds
+     */
+    public long getMediaNanos() {
+        return totalMediaNanos;
+    }
+}
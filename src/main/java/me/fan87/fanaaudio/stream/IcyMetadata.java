@@ -0,0 +1,44 @@
+package me.fan87.fanaaudio.stream;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Shoutcast/ICY metadata of a broadcast. The block (Length byte, {@code StreamTitle='...';}, zero padding) is built
+ * once when the title changes, and every listener that asked for metadata sends that same array every
+ * {@link #INTERVAL} bytes of audio.
+ */
+public class IcyMetadata {
+
+    public static final int INTERVAL = 16000;
+
+    static final byte[] EMPTY = {0};
+    private static final int MAX_LENGTH = 255 * 16;
+
+    private volatile byte[] block = EMPTY;
+
+    /**
+     * Set the title that's shown by players
+     * @param title The title, or null to clear it
+     */
+    public void setTitle(String title) {
+        title = title == null ? "" : title.replace("'", "\u2019"); // Players don't agree on escaping
+        byte[] text = ("StreamTitle='" + title + "';").getBytes(StandardCharsets.UTF_8);
+        while (text.length > MAX_LENGTH) { // Cut the title, not the closing quote
+            title = title.substring(0, title.length() - 1);
+            text = ("StreamTitle='" + title + "';").getBytes(StandardCharsets.UTF_8);
+        }
+        int length = (text.length + 15) / 16 * 16;
+        byte[] block = new byte[length + 1];
+        block[0] = (byte) (length / 16);
+        System.arraycopy(text, 0, block, 1, text.length);
+        this.block = block;
+    }
+
+    /**
+     * Get the current metadata block, length byte included. Must not be changed
+     * @return The block
+     */
+    byte[] getBlock() {
+        return block;
+    }
+}
@@ -0,0 +1,19 @@
+package me.fan87.fanaaudio.stream;
+
+/**
+ * What to do with a listener that has fallen too far behind the station
+ */
+public enum LaggardPolicy {
+    /**
+     * Drop the oldest frames, so the listener is exactly one full queue behind
+     */
+    DROP_FRAMES,
+    /**
+     * Drop everything the listener hasn't received yet, and continue from the newest frame
+     */
+    SKIP_TO_LIVE_EDGE,
+    /**
+     * Disconnect the listener
+     */
+    DISCONNECT
+}
@@ -0,0 +1,206 @@
+package me.fan87.fanaaudio.stream;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * A client that's listening to a station. Holds its own read position in the station's {@link StreamBuffer}.
+ * The bytes between the read position and the write head of the buffer are the listener's send queue.
+ * <p>
+ * Memory model: Stream data only exists once per rendition, in the station's off-heap ring buffer (Its size is
+ * fixed when the station starts, and all of them together are capped by maxBufferBytes). Data is copied to the
+ * socket through one direct scratch buffer per I/O thread. So a listener costs a constant amount of heap: this
+ * record (A cursor, a view of the ring, the channel and a few fields), its connection, and the socket buffers in
+ * the kernel. The ring is only referenced by the broadcast and the views of its listeners, so a stopped station's
+ * ring can be collected as soon as its last listener is gone. The amount of listeners is capped per station by
+ * maxListenersPerStation.
+ */
+public class Listener {
+
+    private final WritableByteChannel channel;
+    private final InetSocketAddress address;
+    private final Broadcast broadcast;
+    private final ByteBuffer view;
+    private final Consumer<Listener> disconnectHandler;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile long position; // Only written by the I/O thread, read by metrics
+    private long droppedBytes = 0;
+    private final IcyMetadata metadata;
+    private final StreamArchive.Playback playback;
+    private int untilMetadata = IcyMetadata.INTERVAL;
+    private byte[] sentMetadata = null;
+    private ByteBuffer pendingMetadata = null;
+
+    /**
+     * @param channel Non-blocking channel of the client
+     * @param address Address of the client
+     * @param broadcast Broadcast the listener is listening to
+     * @param position Absolute position in the buffer to start from
+     * @param disconnectHandler Called once the listener is disconnected
+     */
+    public Listener(WritableByteChannel channel, InetSocketAddress address, Broadcast broadcast, long position, Consumer<Listener> disconnectHandler) {
+        this(channel, address, broadcast, position, null, disconnectHandler);
+    }
+
+    /**
+     * @param channel Non-blocking channel of the client
+     * @param address Address of the client
+     * @param broadcast Broadcast the listener is listening to
+     * @param position Absolute position in the buffer to start from
+     * @param metadata Metadata to interleave every {@link IcyMetadata#INTERVAL} bytes, or null to send audio only
+     * @param disconnectHandler Called once the listener is disconnected
+     */
+    public Listener(WritableByteChannel channel, InetSocketAddress address, Broadcast broadcast, long position, IcyMetadata metadata, Consumer<Listener> disconnectHandler) {
+        this(channel, address, broadcast, position, metadata, null, disconnectHandler);
+    }
+
+    /**
+     * A listener that's time-shifted: It's sent a playback of the station's recordings instead of the live stream,
+     * and is paced by the broadcast it's attached to
+     * @param channel Non-blocking channel of the client
+     * @param address Address of the client
+     * @param broadcast Broadcast the recordings are of
+     * @param playback The playback. Closed with the listener
+     * @param disconnectHandler Called once the listener is disconnected
+     */
+    public Listener(WritableByteChannel channel, InetSocketAddress address, Broadcast broadcast, StreamArchive.Playback playback, Consumer<Listener> disconnectHandler) {
+        this(channel, address, broadcast, broadcast.getBuffer().getWritePosition(), null, playback, disconnectHandler);
+    }
+
+    private Listener(WritableByteChannel channel, InetSocketAddress address, Broadcast broadcast, long position, IcyMetadata metadata, StreamArchive.Playback playback, Consumer<Listener> disconnectHandler) {
+        this.channel = channel;
+        this.address = address;
+        this.broadcast = broadcast;
+        this.view = broadcast.getBuffer().newReadView();
+        this.position = position;
+        this.metadata = metadata;
+        this.playback = playback;
+        this.disconnectHandler = disconnectHandler;
+    }
+
+    /**
+     * Send as much as the channel accepts of what the listener hasn't received yet. Must only be called by one thread at a time
+     * @param scratch Temporary buffer to copy the data into
+     * @param policy What to do if the listener is too slow
+     * @param maxQueueSize Maximum amount of bytes the listener can be behind
+     * @return true if the listener has received everything, false if the channel can't accept more right now
+     * @throws IOException If the client has disconnected, or it's too slow and the policy is {@link LaggardPolicy#DISCONNECT}
+     */
+    public boolean drain(ByteBuffer scratch, LaggardPolicy policy, int maxQueueSize) throws IOException {
+        StreamBuffer buffer = broadcast.getBuffer();
+        if (playback != null) {
+            position = buffer.getWritePosition(); // Never lagging behind the live stream, it's not reading it
+            return closed.get() || playback.send(channel);
+        }
+        while (!closed.get()) {
+            if (pendingMetadata != null) {
+                channel.write(pendingMetadata);
+                if (pendingMetadata.hasRemaining()) return false;
+                pendingMetadata = null;
+            }
+            long head = buffer.getWritePosition();
+            int read = -1;
+            if (head - position <= maxQueueSize) {
+                read = buffer.read(position, view, scratch);
+            }
+            if (read == -1) {
+                long skipTo;
+                switch (policy) {
+                    case DROP_FRAMES:
+                        skipTo = buffer.alignToFrame(head - maxQueueSize);
+                        break;
+                    case SKIP_TO_LIVE_EDGE:
+                        skipTo = head;
+                        break;
+                    default:
+                        throw new IOException("Client is too slow");
+                }
+                droppedBytes += skipTo - position;
+                broadcast.countDropped(skipTo - position);
+                position = skipTo;
+                continue;
+            }
+            if (read == 0) return true;
+            if (metadata != null && scratch.remaining() > untilMetadata) {
+                scratch.limit(scratch.position() + untilMetadata); // Audio up to the metadata block
+            }
+            int written = channel.write(scratch);
+            broadcast.countDelivered(written);
+            position += written;
+            if (metadata != null && (untilMetadata -= written) == 0) {
+                byte[] block = metadata.getBlock();
+                pendingMetadata = ByteBuffer.wrap(block == sentMetadata ? IcyMetadata.EMPTY : block); // Shared arrays, nothing is copied
+                sentMetadata = block;
+                untilMetadata = IcyMetadata.INTERVAL;
+                continue;
+            }
+            if (scratch.hasRemaining()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Mark the listener as disconnected, and notify the disconnect handler (Only once)
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return; // The I/O thread and the broadcast can both close it
+        try {
+            channel.close();
+        } catch (Exception ignored) {}
+        if (playback != null) playback.close();
+        broadcast.removeListener(this);
+        disconnectHandler.accept(this);
+    }
+
+    /**
+     * Get the address of the client
+     * @return Client address
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Get the display name of the client (host:port)
+     * @return Display name
+     */
+    public String getName() {
+        return address.getHostString() + ":" + address.getPort();
+    }
+
+    /**
+     * Get the broadcast the listener is listening to
+     * @return The broadcast
+     */
+    public Broadcast getBroadcast() {
+        return broadcast;
+    }
+
+    /**
+     * Get the absolute read position in the station's buffer
+     * @return Read position
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Get the amount of bytes skipped because the listener was too slow
+     * @return Dropped bytes
+     */
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * Check if the listener has been closed
+     * @return If closed
+     */
+    public boolean isClosed() {
+        return closed.get();
+    }
+}
@@ -0,0 +1,98 @@
+package me.fan87.fanaaudio.stream;
+
+import me.fan87.fanaaudio.FANARadio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Memory-maps cached segments for playout, shared by all stations. The currently playing and upcoming segments
+ * stay mapped (Least recently used ones are dropped once the byte budget is exceeded), so stations that loop a small
+ * rotation read their frames straight from mapped pages instead of going through the file API every time.
+ */
+public class SegmentStore {
+
+    private final FANARadio radio;
+    private final Map<File, MappedByteBuffer> segments = new LinkedHashMap<>(16, 0.75f, true);
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "Segment Prefetch Thread");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long size = 0;
+
+    public SegmentStore(FANARadio radio) {
+        this.radio = radio;
+    }
+
+    /**
+     * Get a segment, mapping it if it's not mapped yet
+     * @param segment Segment file
+     * @return A read-only view of the segment, positioned at its start
+     * @throws IOException If the file couldn't be mapped
+     */
+    public ByteBuffer get(File segment) throws IOException {
+        return map(segment).asReadOnlyBuffer();
+    }
+
+    private MappedByteBuffer map(File segment) throws IOException {
+        MappedByteBuffer buffer;
+        synchronized (this) {
+            buffer = segments.get(segment);
+        }
+        if (buffer == null) {
+            try (RandomAccessFile file = new RandomAccessFile(segment, "r"); FileChannel channel = file.getChannel()) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // The mapping stays valid after closing
+            }
+            synchronized (this) {
+                MappedByteBuffer previous = segments.put(segment, buffer);
+                if (previous != null) size -= previous.capacity();
+                size += buffer.capacity();
+                evict(segment);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Map a segment and load it into memory in the background, so it's ready once it's played
+     * @param segment Segment file
+     */
+    public void prefetch(File segment) {
+        prefetchExecutor.execute(() -> {
+            try {
+                map(segment).load(); // Touch every page
+            } catch (IOException e) {
+                radio.getLogger().warn("Failed to prefetch segment " + segment.getPath() + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private void evict(File keep) {
+        long budget = radio.getConfigsManager().getConfig().segmentStoreBytes;
+        Iterator<Map.Entry<File, MappedByteBuffer>> iterator = segments.entrySet().iterator();
+        while (size > budget && iterator.hasNext()) {
+            Map.Entry<File, MappedByteBuffer> entry = iterator.next();
+            if (entry.getKey().equals(keep)) continue;
+            size -= entry.getValue().capacity();
+            iterator.remove(); // Unmapped once the playout is done with it and it's garbage collected
+        }
+    }
+
+    /**
+     * Get the total size of the mapped segments
+     * @return Size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,488 @@
+package me.fan87.fanaaudio.stream;
+
+import me.fan87.fanaaudio.FANARadio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records what a broadcast has actually aired, so it can be played back later. The frames are appended to one file
+ * per hour (Named after the time of its first frame), and next to it an index with one record per second of audio:
+ * The time the frame was aired, and where it starts in the file. Records are fixed size and in order, so a time is
+ * found by looking up the file in a sorted map, and then binary searching its index, whatever the retention is.
+ * <p>
+ * Recording is done by a thread of its own, reading the broadcast's buffer with its own cursor like a listener, so
+ * a slow disk never holds up the playout. Readers only ever see complete frames, and are sent the data straight
+ * from the files.
+ */
+public class StreamArchive {
+
+    private static final long CHUNK_MILLIS = 60 * 60 * 1000;
+    private static final int RECORD_SIZE = 16;
+    private static final long POLL_MILLIS = 200;
+
+    private final FANARadio radio;
+    private final String name;
+    private final Broadcast broadcast;
+    private final File folder;
+    private final long retentionMillis;
+    private final TreeMap<Long, Chunk> chunks = new TreeMap<>();
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+    private final ByteBuffer view;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private volatile boolean running = false;
+    private Thread thread = null;
+    private Chunk current = null;
+    private FileChannel dataChannel = null;
+    private FileChannel indexChannel = null;
+    private long currentEnd = 0;
+    private long lastIndexedSecond = -1;
+    private long readPosition = 0;
+    private boolean failing = false;
+
+    /**
+     * @param radio Instance of FANARadio
+     * @param name Name used in logs
+     * @param broadcast The broadcast to record
+     * @param folder Folder of the archive. Recordings that are already in it are kept
+     * @param retentionMillis How long recordings are kept
+     */
+    public StreamArchive(FANARadio radio, String name, Broadcast broadcast, File folder, long retentionMillis) {
+        this.radio = radio;
+        this.name = name;
+        this.broadcast = broadcast;
+        this.view = broadcast.getBuffer().newReadView();
+        this.folder = folder;
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * Load the recordings that are in the folder, and start recording
+     */
+    public synchronized void start() {
+        folder.mkdirs();
+        File[] files = folder.listFiles((dir, file) -> file.endsWith(".idx"));
+        if (files != null) {
+            for (File index : files) {
+                try {
+                    long start = Long.parseLong(index.getName().substring(0, index.getName().length() - 4));
+                    Chunk chunk = new Chunk(start, new File(folder, start + ".aac"), index);
+                    chunk.size = chunk.data.length();
+                    chunk.records = (int) (index.length() / RECORD_SIZE); // A record that was cut off isn't counted
+                    if (chunk.records > 0) chunks.put(start, chunk);
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+        radio.getLogger().info(String.format("[%s]  Loaded %s recording files", name, chunks.size()));
+        readPosition = broadcast.getBuffer().getWritePosition();
+        running = true;
+        thread = new Thread(() -> {
+            try {
+                while (running) {
+                    if (!recordFrame()) Thread.sleep(POLL_MILLIS);
+                }
+            } catch (InterruptedException ignored) {
+            } finally {
+                closeCurrent();
+            }
+        }, "Archive Thread (" + name + ")");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop recording, and wait for the thread to finish the frame it's writing. The recordings stay available, and
+     * are complete by the time this returns, so a restarted station can load them
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = this.thread;
+            this.thread = null;
+        }
+        if (thread == null) return;
+        try {
+            thread.join(); // At most one poll interval and one frame
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Append the next frame the broadcast has published
+     * @return If there was a frame
+     */
+    private boolean recordFrame() {
+        StreamBuffer buffer = broadcast.getBuffer();
+        long head = buffer.getWritePosition();
+        if (readPosition >= head) return false;
+        if (readPosition < buffer.getOldestPosition()) {
+            long skipTo = buffer.alignToFrame(buffer.getOldestPosition());
+            radio.getLogger().warn(String.format("[%s]  Recording has fallen behind, %s bytes are missing", name, skipTo - readPosition));
+            readPosition = skipTo;
+            closeCurrent(); // The gap starts a new file, so the index never skips over it
+            return true;
+        }
+        long frameEnd = buffer.alignToFrame(readPosition + 1);
+        long writtenNanos = buffer.getFrameNanos(readPosition);
+        long aired = System.currentTimeMillis() - (writtenNanos == -1 ? 0 : (System.nanoTime() - writtenNanos) / 1_000_000);
+        int read = buffer.read(readPosition, view, scratch);
+        if (read == -1) return true; // Overwritten, handled above
+        scratch.limit((int) Math.min(read, frameEnd - readPosition));
+        try {
+            if (current == null || aired >= currentEnd) rotate(aired);
+            long frameStart = current.size;
+            long offset = frameStart;
+            while (scratch.hasRemaining()) {
+                offset += dataChannel.write(scratch);
+            }
+            current.size = offset;
+            if (aired / 1000 != lastIndexedSecond) {
+                record.clear();
+                record.putLong(aired).putLong(frameStart).flip();
+                while (record.hasRemaining()) {
+                    indexChannel.write(record);
+                }
+                current.records++;
+                lastIndexedSecond = aired / 1000;
+            }
+            failing = false;
+        } catch (IOException e) {
+            if (!failing) radio.getLogger().error(String.format("[%s]  Failed to record: %s", name, e.getMessage()));
+            failing = true;
+            closeCurrent(); // Start over in a new file, so a half written frame is never followed by anything
+        }
+        readPosition += scratch.limit();
+        return true;
+    }
+
+    private void rotate(long now) throws IOException {
+        closeCurrent();
+        Chunk chunk = new Chunk(now, new File(folder, now + ".aac"), new File(folder, now + ".idx"));
+        dataChannel = FileChannel.open(chunk.data.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        indexChannel = FileChannel.open(chunk.index.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        current = chunk;
+        currentEnd = (now / CHUNK_MILLIS + 1) * CHUNK_MILLIS;
+        lastIndexedSecond = -1;
+        synchronized (chunks) {
+            chunks.put(now, chunk);
+            while (chunks.size() > 1 && chunks.higherKey(chunks.firstKey()) <= now - retentionMillis) { // Everything in the oldest file has expired
+                Chunk expired = chunks.remove(chunks.firstKey());
+                expired.data.delete();
+                expired.index.delete();
+            }
+        }
+    }
+
+    private void closeCurrent() {
+        try {
+            if (dataChannel != null) dataChannel.close();
+            if (indexChannel != null) indexChannel.close();
+        } catch (IOException ignored) {}
+        dataChannel = null;
+        indexChannel = null;
+        current = null;
+    }
+
+    /**
+     * Start playing back from a time. Seeks to the last indexed frame that's not after the time
+     * @param millis Time in epoch milliseconds. Clamped to the recordings that exist
+     * @param burstMillis How far ahead of real time the playback may be (Sent right away, to fill the player's buffer)
+     * @return The playback, or null if nothing has been recorded
+     */
+    public Playback play(long millis, long burstMillis) {
+        Chunk chunk;
+        synchronized (chunks) {
+            Map.Entry<Long, Chunk> entry = chunks.floorEntry(millis);
+            if (entry == null) entry = chunks.firstEntry();
+            if (entry == null) return null;
+            chunk = entry.getValue();
+        }
+        Playback playback = new Playback(burstMillis);
+        try (FileChannel index = FileChannel.open(chunk.index.toPath(), StandardOpenOption.READ)) {
+            int found = Math.max(0, search(index, chunk.records, millis + 1) - 1);
+            ByteBuffer buffer = readRecord(index, found);
+            playback.open(chunk, found, buffer.getLong(), buffer.getLong());
+            return playback;
+        } catch (IOException e) {
+            playback.close();
+            return null; // Expired in the meantime
+        }
+    }
+
+    /**
+     * Get a segment that has been listed by {@link #list(long, long)}
+     * @param key Key of the segment
+     * @param segmentMillis Duration of segments
+     * @return The segment, or null if it hasn't been recorded completely yet (or has expired)
+     */
+    public Range getSegment(long key, long segmentMillis) {
+        long from = key * segmentMillis;
+        long to = from + segmentMillis;
+        List<Chunk> candidates = new ArrayList<>(2);
+        synchronized (chunks) {
+            Map.Entry<Long, Chunk> entry = chunks.floorEntry(from);
+            if (entry != null) candidates.add(entry.getValue());
+            Map.Entry<Long, Chunk> next = chunks.higherEntry(from);
+            if (next != null && next.getKey() < to) candidates.add(next.getValue());
+        }
+        for (Chunk chunk : candidates) { // Same rule as list(): The first file that has frames in the segment
+            try (FileChannel index = FileChannel.open(chunk.index.toPath(), StandardOpenOption.READ)) {
+                int records = chunk.records;
+                int first = search(index, records, from);
+                if (first == records) continue;
+                ByteBuffer buffer = readRecord(index, first);
+                long time = buffer.getLong();
+                long offset = buffer.getLong();
+                if (time >= to) continue;
+                int last = search(index, records, to);
+                long end;
+                if (last < records) {
+                    end = readRecord(index, last).getLong(8);
+                } else {
+                    synchronized (chunks) {
+                        if (chunks.higherKey(chunk.start) == null) return null; // Still being written, and a truncated segment would be cached for good
+                    }
+                    end = chunk.size; // Final, the recording has moved on
+                }
+                return new Range(chunk.data, offset, end - offset, time, key, 0);
+            } catch (IOException ignored) {}
+        }
+        return null;
+    }
+
+    /**
+     * List the complete segments that have been recorded since a time. Segments are aligned to multiples of their
+     * duration, their key is the start of that window divided by the duration. A segment never spans two files: If
+     * a recording started within a segment of the previous file, that part is left out
+     * @param fromMillis Time in epoch milliseconds
+     * @param segmentMillis Duration of segments
+     * @return Segments in order
+     */
+    public List<Range> list(long fromMillis, long segmentMillis) {
+        fromMillis = fromMillis / segmentMillis * segmentMillis;
+        List<Chunk> listed;
+        synchronized (chunks) {
+            Long first = chunks.floorKey(fromMillis);
+            listed = new ArrayList<>((first == null ? chunks : chunks.tailMap(first, true)).values());
+        }
+        List<Range> segments = new ArrayList<>();
+        for (int i = 0; i < listed.size(); i++) {
+            Chunk chunk = listed.get(i);
+            Chunk next = i + 1 < listed.size() ? listed.get(i + 1) : null;
+            try (FileChannel index = FileChannel.open(chunk.index.toPath(), StandardOpenOption.READ)) {
+                int records = chunk.records;
+                long size = chunk.size;
+                int position = search(index, records, fromMillis);
+                ByteBuffer buffer = ByteBuffer.allocate((records - position) * RECORD_SIZE);
+                while (buffer.hasRemaining() && index.read(buffer, (long) position * RECORD_SIZE + buffer.position()) != -1) {
+                }
+                buffer.flip();
+                long segmentKey = -1; // Of the segment being collected, -1 if it's left out
+                long segmentOffset = 0;
+                long segmentStart = 0;
+                long lastTime = 0;
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    long time = buffer.getLong();
+                    long offset = buffer.getLong();
+                    long key = time / segmentMillis;
+                    if (key != segmentKey) {
+                        if (segmentKey != -1) segments.add(new Range(chunk.data, segmentOffset, offset - segmentOffset, segmentStart, segmentKey, time - segmentStart));
+                        segmentKey = -1;
+                        if (segments.isEmpty() || key > segments.get(segments.size() - 1).key) {
+                            segmentKey = key;
+                            segmentOffset = offset;
+                            segmentStart = time;
+                        }
+                    }
+                    lastTime = time;
+                }
+                if (segmentKey != -1 && next != null) { // The last one is only complete once the next file has started
+                    long end = next.start - lastTime < 2000 ? next.start : lastTime + 1000;
+                    segments.add(new Range(chunk.data, segmentOffset, size - segmentOffset, segmentStart, segmentKey, end - segmentStart));
+                }
+            } catch (IOException ignored) {} // Expired in the meantime
+        }
+        return segments;
+    }
+
+    /**
+     * Find the first record that's at or after a time
+     * @return Index of the record, or the amount of records if there's none
+     */
+    private static int search(FileChannel index, int records, long millis) throws IOException {
+        int low = 0;
+        int high = records;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (readRecord(index, middle).getLong(0) < millis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static ByteBuffer readRecord(FileChannel index, int record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        while (buffer.hasRemaining()) {
+            if (index.read(buffer, (long) record * RECORD_SIZE + buffer.position()) == -1) throw new IOException("Index is truncated");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Playback of the recordings from a time on, paced at real time. It goes on through the following files, and
+     * keeps following the recording as it's written, so the listener stays behind live by the same amount. A gap
+     * (The station was down) is skipped instead of waited out
+     */
+    public class Playback {
+        private final long burstMillis;
+        private Chunk chunk = null;
+        private FileChannel data = null;
+        private FileChannel index = null;
+        private long position = 0; // In the current file
+        private int dueRecord = 0; // First record of the current file that isn't due yet
+        private long pendingTime = -1; // Time of that record, -1 if it hasn't been read yet
+        private long pendingOffset = 0;
+        private long lastTime = 0; // Time of the last record that was due
+        private long shift = 0; // Real time minus air time
+        private long startMillis = 0;
+
+        private Playback(long burstMillis) {
+            this.burstMillis = burstMillis;
+        }
+
+        private void open(Chunk chunk, int record, long time, long offset) throws IOException {
+            if (data == null) {
+                shift = System.currentTimeMillis() - time;
+                startMillis = time;
+            }
+            close();
+            this.chunk = chunk;
+            this.data = FileChannel.open(chunk.data.toPath(), StandardOpenOption.READ);
+            this.index = FileChannel.open(chunk.index.toPath(), StandardOpenOption.READ);
+            this.position = offset;
+            this.dueRecord = record;
+            this.pendingTime = -1;
+            this.lastTime = time;
+        }
+
+        /**
+         * Send what's due by now, straight from the files
+         * @param channel Non-blocking channel of the listener
+         * @return true if everything that's due has been sent, false if the channel can't accept more right now
+         * @throws IOException If the channel is closed, or the recording has expired
+         */
+        public synchronized boolean send(WritableByteChannel channel) throws IOException {
+            if (data == null) throw new IOException("Playback has been closed");
+            while (true) {
+                long due = System.currentTimeMillis() + burstMillis - shift; // Air time that may be sent
+                int records = chunk.records;
+                long size = chunk.size; // After the records, so it covers every record that has been read
+                while (dueRecord < records) {
+                    if (pendingTime == -1) {
+                        ByteBuffer buffer = readRecord(index, dueRecord);
+                        pendingTime = buffer.getLong();
+                        pendingOffset = buffer.getLong();
+                    }
+                    if (pendingTime > due) break;
+                    lastTime = pendingTime;
+                    pendingTime = -1;
+                    dueRecord++;
+                }
+                long limit = dueRecord < records ? pendingOffset : size;
+                while (position < limit) {
+                    long sent = data.transferTo(position, limit - position, channel);
+                    if (sent == 0) return false;
+                    position += sent;
+                }
+                if (dueRecord < records || !nextFile()) return true;
+            }
+        }
+
+        /**
+         * Move on to the next file, once the current one is complete and has been sent
+         * @return If there's more to send
+         */
+        private boolean nextFile() throws IOException {
+            Chunk next;
+            synchronized (chunks) {
+                Map.Entry<Long, Chunk> entry = chunks.higherEntry(chunk.start);
+                if (entry == null) return false; // Still being written
+                next = entry.getValue();
+            }
+            if (dueRecord < chunk.records || position < chunk.size) return true; // Written just before it was complete
+            long gap = next.start - lastTime;
+            if (gap > 2000) shift -= gap - 1000;
+            open(next, 0, next.start, 0);
+            return true;
+        }
+
+        /**
+         * Get the time the playback has started from
+         * @return Air time of the first frame, in epoch milliseconds
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * Close the files. Can be called from any thread
+         */
+        public synchronized void close() {
+            try {
+                if (data != null) data.close();
+                if (index != null) index.close();
+            } catch (IOException ignored) {}
+            data = null;
+            index = null;
+        }
+    }
+
+    /**
+     * A segment of a recording. The duration is only known to {@link #list(long, long)}
+     */
+    public static class Range {
+        public final File file;
+        public final long offset;
+        public final long length;
+        public final long startMillis;
+        public final long key;
+        public final long durationMillis;
+
+        private Range(File file, long offset, long length, long startMillis, long key, long durationMillis) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.startMillis = startMillis;
+            this.key = key;
+            this.durationMillis = durationMillis;
+        }
+    }
+
+    private static class Chunk {
+        private final long start;
+        private final File data;
+        private final File index;
+        private volatile long size = 0;
+        private volatile int records = 0;
+
+        private Chunk(long start, File data, File index) {
+            this.start = start;
+            this.data = data;
+            this.index = index;
+        }
+    }
+}
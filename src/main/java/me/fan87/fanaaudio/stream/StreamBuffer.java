@@ -0,0 +1,269 @@
+package me.fan87.fanaaudio.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed size ring buffer shared by every listener of a station. The station writes encoded frames into it once,
+ * and every listener keeps its own absolute read position (cursor) into it.
+ * <p>
+ * There must only be one writer. Readers copy data out with {@link #read(long, ByteBuffer, ByteBuffer)}. The writer
+ * only ever changes the {@link #MAX_FRAME} bytes after the write position before it publishes them, which is the
+ * oldest data of the ring, so that part is never handed to readers: They're refused before copying, and again after
+ * copying if the writer has moved on into what they copied.
+ * <p>
+ * The data lives off-heap in a direct buffer that's allocated once, so a station's stream costs the garbage
+ * collector nothing, however many listeners it has. Only the small frame index is on the heap.
+ */
+public class StreamBuffer {
+
+    /**
+     * Most bytes the writer changes before it publishes them. ADTS frames are at most 8191 bytes, longer writes are
+     * published in parts
+     */
+    public static final int MAX_FRAME = 8192;
+
+    private final ByteBuffer data;
+    private final ByteBuffer writeView;
+    private final int capacity;
+    private final int mask;
+    private volatile long writePosition = 0;
+
+    private final long[] frameStarts;
+    private final long[] frameTimes;
+    private final int frameMask;
+    private volatile long frameCount = 0;
+
+    /**
+     * @param capacity Minimum capacity in bytes (Rounded up to a power of two)
+     */
+    public StreamBuffer(int capacity) {
+        int size = getCapacity(capacity);
+        this.data = ByteBuffer.allocateDirect(size);
+        this.writeView = data.duplicate();
+        this.capacity = size;
+        this.mask = size - 1;
+        this.frameStarts = new long[powerOfTwo(size / 64)];
+        this.frameTimes = new long[frameStarts.length];
+        this.frameMask = frameStarts.length - 1;
+    }
+
+    /**
+     * Get the capacity a buffer would actually have
+     * @param capacity Minimum capacity in bytes
+     * @return Capacity in bytes
+     */
+    public static int getCapacity(int capacity) {
+        return powerOfTwo(Math.max(capacity, MAX_FRAME * 4)); // Leaves readers at least half of it, clear of the guard band
+    }
+
+    private static int powerOfTwo(int value) {
+        int size = Integer.highestOneBit(value);
+        return size < value ? size << 1 : size;
+    }
+
+    /**
+     * Create a view of the ring for a reader, so reading doesn't need one every time. A view must only be used by
+     * one thread at a time, and it keeps the ring's memory alive as long as the reader is
+     * @return Read-only view
+     */
+    public ByteBuffer newReadView() {
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Append a frame to the buffer. Only the station's streaming thread should call this
+     * @param bytes Source bytes
+     * @param offset Offset in source
+     * @param length Amount of bytes
+     */
+    public void write(byte[] bytes, int offset, int length) {
+        if (length > capacity - MAX_FRAME) {
+            offset += length - (capacity - MAX_FRAME);
+            length = capacity - MAX_FRAME;
+        }
+        long position = writePosition;
+        frameStarts[(int) (frameCount & frameMask)] = position;
+        frameTimes[(int) (frameCount & frameMask)] = System.nanoTime();
+        frameCount++; // Before the data, so a reader that can see the data can see where its frame starts
+        for (int written = 0; written < length; ) {
+            int part = Math.min(length - written, MAX_FRAME);
+            int start = (int) ((position + written) & mask);
+            int first = Math.min(part, capacity - start);
+            writeView.clear().position(start);
+            writeView.put(bytes, offset + written, first);
+            if (first < part) {
+                writeView.clear();
+                writeView.put(bytes, offset + written + first, part - first);
+            }
+            written += part;
+            writePosition = position + written;
+        }
+    }
+
+    /**
+     * Append a frame to the buffer. Only the station's streaming thread should call this
+     * @param source Source buffer (Its position is not changed)
+     * @param offset Absolute offset in source
+     * @param length Amount of bytes
+     */
+    public void write(ByteBuffer source, int offset, int length) {
+        if (length > capacity - MAX_FRAME) {
+            offset += length - (capacity - MAX_FRAME);
+            length = capacity - MAX_FRAME;
+        }
+        ByteBuffer view = source.duplicate();
+        long position = writePosition;
+        frameStarts[(int) (frameCount & frameMask)] = position;
+        frameTimes[(int) (frameCount & frameMask)] = System.nanoTime();
+        frameCount++; // Before the data, so a reader that can see the data can see where its frame starts
+        for (int written = 0; written < length; ) {
+            int part = Math.min(length - written, MAX_FRAME);
+            int start = (int) ((position + written) & mask);
+            int first = Math.min(part, capacity - start);
+            view.limit(offset + written + first).position(offset + written);
+            writeView.clear().position(start);
+            writeView.put(view);
+            if (first < part) {
+                view.limit(offset + written + part).position(offset + written + first);
+                writeView.clear();
+                writeView.put(view);
+            }
+            written += part;
+            writePosition = position + written;
+        }
+    }
+
+    /**
+     * Copy bytes starting from the position into the target buffer. The target is cleared first, and flipped for reading after.
+     * Bytes that were (being) overwritten while they were copied are never returned
+     * @param position Absolute position of the reader
+     * @param view View of the reader, from {@link #newReadView()}
+     * @param target Target buffer
+     * @return Amount of bytes copied, or -1 if the position is no longer available (Reader is too slow)
+     */
+    public int read(long position, ByteBuffer view, ByteBuffer target) {
+        target.clear();
+        long head = writePosition;
+        if (position < head - capacity + MAX_FRAME) return -1;
+        int length = (int) Math.min(head - position, target.capacity());
+        if (length > 0) {
+            int start = (int) (position & mask);
+            int first = Math.min(length, capacity - start);
+            view.limit(start + first).position(start);
+            target.put(view);
+            if (first < length) {
+                view.limit(length - first).position(0);
+                target.put(view);
+            }
+        }
+        target.flip();
+        if (position < writePosition - capacity + MAX_FRAME) return -1; // The writer has lapped the reader while copying
+        return length;
+    }
+
+    /**
+     * Find the start of the first frame that's at or after the position
+     * @param position Absolute position
+     * @return Absolute position of the frame start, or the write position if there's no such frame
+     */
+    public long alignToFrame(long position) {
+        long count = frameCount;
+        long head = writePosition;
+        position = Math.max(position, head - capacity + MAX_FRAME);
+        long low = Math.max(0, count - frameStarts.length + 1);
+        long high = count;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (frameStarts[(int) (middle & frameMask)] < position) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        if (low >= count) return head;
+        return frameStarts[(int) (low & frameMask)];
+    }
+
+    /**
+     * Get when a frame was written
+     * @param position Absolute position of the frame start
+     * @return {@link System#nanoTime()} of the write, or -1 if there's no frame starting there (anymore)
+     */
+    public long getFrameNanos(long position) {
+        long count = frameCount;
+        long low = Math.max(0, count - frameStarts.length + 1);
+        long high = count;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (frameStarts[(int) (middle & frameMask)] < position) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        if (low >= count || frameStarts[(int) (low & frameMask)] != position) return -1;
+        long nanos = frameTimes[(int) (low & frameMask)];
+        if (frameCount - low >= frameStarts.length) return -1; // Reused while reading
+        return nanos;
+    }
+
+    /**
+     * Find the start of the oldest frame that has been written within the duration, and is still in the buffer.
+     * Frames are written at real-time rate, so this is the backlog a new listener can be sent right away
+     * @param nanos Duration in nanoseconds
+     * @return Absolute position of the frame start, or the write position if there's no such frame
+     */
+    public long seekBack(long nanos) {
+        long count = frameCount;
+        long head = writePosition;
+        long since = System.nanoTime() - nanos;
+        long low = Math.max(0, count - frameStarts.length + 1);
+        long high = count;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (frameTimes[(int) (middle & frameMask)] - since < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        if (low >= count) return head;
+        long position = frameStarts[(int) (low & frameMask)];
+        if (position < head - capacity + MAX_FRAME) return alignToFrame(head - capacity + MAX_FRAME); // Partly overwritten already
+        return position;
+    }
+
+    /**
+     * Get the absolute position of the write head (Total bytes written)
+     * @return The write position
+     */
+    public long getWritePosition() {
+        return writePosition;
+    }
+
+    /**
+     * Get the oldest absolute position that is still available in the buffer
+     * @return The oldest position
+     */
+    public long getOldestPosition() {
+        return Math.max(0, writePosition - capacity + MAX_FRAME);
+    }
+
+    /**
+     * Limit how far a reader may be behind, so it stays well clear of the part of the ring that's overwritten next. The
+     * ring is sized when the station starts, and the queue size setting can be changed afterwards
+     * @param queueSize Requested maximum backlog in bytes
+     * @return Backlog in bytes that's safe with this buffer
+     */
+    public int clampQueueSize(int queueSize) {
+        return Math.min(queueSize, capacity / 2);
+    }
+
+    /**
+     * Get the capacity of the buffer
+     * @return Capacity in bytes
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,92 @@
+package me.fan87.fanaaudio.transcode;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A validated, committed transcode of a track. While it's retained (Being played), it won't be evicted
+ */
+public class CacheEntry {
+
+    private final String key;
+    private final File folder;
+    private final CacheManifest manifest;
+    private final long size;
+    private final AtomicInteger references = new AtomicInteger();
+    private volatile long lastAccess;
+
+    CacheEntry(String key, File folder, CacheManifest manifest, long lastAccess) {
+        this.key = key;
+        this.folder = folder;
+        this.manifest = manifest;
+        this.lastAccess = lastAccess;
+        long size = 0;
+        for (CacheManifest.Segment segment : manifest.segments) {
+            size += segment.bytes;
+        }
+        this.size = size;
+    }
+
+    /**
+     * Prevent the entry from being evicted. Must be paired with {@link #release()}
+     */
+    public void retain() {
+        references.incrementAndGet();
+        lastAccess = System.currentTimeMillis();
+    }
+
+    public void release() {
+        references.decrementAndGet();
+    }
+
+    boolean isRetained() {
+        return references.get() > 0;
+    }
+
+    /**
+     * Get the segment files in play order
+     * @return Segment files
+     */
+    public List<File> getSegments() {
+        List<File> files = new ArrayList<>();
+        for (CacheManifest.Segment segment : manifest.segments) {
+            files.add(new File(folder, segment.file));
+        }
+        return Collections.unmodifiableList(files);
+    }
+
+    /**
+     * Get the content key (Hash of source content and encoding parameters)
+     * @return Key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    public CacheManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Get the total size of the segments
+     * @return Size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    long getLastAccess() {
+        return lastAccess;
+    }
+
+    void touch() {
+        lastAccess = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,48 @@
+package me.fan87.fanaaudio.transcode;
+
+import com.google.gson.annotations.Expose;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes a committed cache entry. Written as manifest.json into the entry folder, last, before the folder
+ * is renamed into place
+ */
+public class CacheManifest {
+
+    @Expose
+    public String source = "";
+
+    @Expose
+    public String parameters = "";
+
+    @Expose
+    public long created = 0;
+
+    @Expose
+    public long frames = 0;
+
+    @Expose
+    public long durationMillis = 0;
+
+    @Expose
+    public List<Segment> segments = new ArrayList<>();
+
+    public static class Segment {
+
+        @Expose
+        public String file = "";
+
+        @Expose
+        public long bytes = 0;
+
+        @Expose
+        public long frames = 0;
+
+        @Expose
+        public long durationMillis = 0;
+
+    }
+
+}
@@ -0,0 +1,372 @@
+package me.fan87.fanaaudio.transcode;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.Expose;
+import com.google.gson.reflect.TypeToken;
+import me.fan87.fanaaudio.FANARadio;
+import me.fan87.fanaaudio.stream.AdtsFrameReader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Content addressed transcode cache. Every entry lives in cache/&lt;key&gt;/, where the key is a hash of the source
+ * content and the encoding parameters, so a replaced source file gets a new entry, and identical tracks in different
+ * stations share one. Entries are built in a temporary folder and renamed into place once complete, and the least
+ * recently used ones are evicted when the cache grows beyond the configured size.
+ */
+public class TrackCache {
+
+    private static final String MANIFEST = "manifest.json";
+    private static final String SOURCES = "sources.json";
+    private static final String TEMPORARY_PREFIX = ".tmp-";
+
+    private final FANARadio radio;
+    private final File root = new File("cache");
+    private final Map<String, CacheEntry> entries = new ConcurrentHashMap<>();
+    private final Map<String, SourceHash> sourceHashes = new ConcurrentHashMap<>();
+    private final Gson gson = new GsonBuilder()
+            .setPrettyPrinting()
+            .create();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long lastSourcesSave = 0;
+
+    public TrackCache(FANARadio radio) {
+        this.radio = radio;
+        root.mkdirs();
+        File[] folders = root.listFiles(File::isDirectory);
+        if (folders != null) {
+            for (File folder : folders) {
+                if (folder.getName().startsWith(TEMPORARY_PREFIX)) {
+                    delete(folder); // Unfinished transcode from last run
+                    continue;
+                }
+                CacheEntry entry = load(folder);
+                if (entry != null) {
+                    entries.put(entry.getKey(), entry);
+                }
+            }
+        }
+        File sources = new File(root, SOURCES);
+        if (sources.isFile()) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(sources), StandardCharsets.UTF_8)) {
+                Map<String, SourceHash> loaded = gson.fromJson(reader, new TypeToken<Map<String, SourceHash>>() {}.getType());
+                if (loaded != null) sourceHashes.putAll(loaded);
+            } catch (Exception e) {
+                radio.getLogger().warn("Failed to load cache source index, sources will be hashed again: " + e.getMessage());
+            }
+        }
+        radio.getLogger().info(String.format("Loaded %s cache entries (%s MiB)", entries.size(), getSize() / 1024 / 1024));
+        evict();
+    }
+
+    /**
+     * Compute the content key of a source file for the encoding parameters. Hashes are remembered by path, size
+     * and modification time, so unchanged files are only read once
+     * @param source Source file
+     * @param parameters Encoding parameters
+     * @return Content key
+     * @throws IOException If the file couldn't be read
+     */
+    public String computeKey(File source, String parameters) throws IOException {
+        String path = source.getAbsolutePath();
+        long size = source.length();
+        long modified = source.lastModified();
+        SourceHash known = sourceHashes.get(path);
+        String contentHash;
+        if (known != null && known.size == size && known.modified == modified) {
+            contentHash = known.hash;
+        } else {
+            contentHash = hash(source);
+            SourceHash sourceHash = new SourceHash();
+            sourceHash.size = size;
+            sourceHash.modified = modified;
+            sourceHash.hash = contentHash;
+            sourceHashes.put(path, sourceHash);
+            saveSources(false);
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(contentHash.getBytes(StandardCharsets.UTF_8));
+            digest.update(parameters.getBytes(StandardCharsets.UTF_8));
+            return toHex(digest.digest()).substring(0, 32);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hash(File file) throws IOException {
+        try (InputStream inputStream = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Get a committed entry
+     * @param key Content key
+     * @return The entry, or null if it's not cached (Or has been damaged)
+     */
+    public CacheEntry get(String key) {
+        CacheEntry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (!isIntact(entry)) {
+            radio.getLogger().warn("Cache entry " + key + " is damaged, it will be transcoded again");
+            entries.remove(key);
+            delete(entry.getFolder());
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        entry.touch();
+        new File(entry.getFolder(), MANIFEST).setLastModified(System.currentTimeMillis()); // Remember access across restarts
+        return entry;
+    }
+
+    /**
+     * Get the amount of lookups that found an intact entry
+     * @return Hit count
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the amount of lookups that had to transcode
+     * @return Miss count
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the amount of entries
+     * @return Entry count
+     */
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Check if the entry is still in the cache (Hasn't been evicted or replaced)
+     * @param entry The entry
+     * @return If cached
+     */
+    public boolean isCached(CacheEntry entry) {
+        return entries.get(entry.getKey()) == entry;
+    }
+
+    /**
+     * Create an empty temporary folder to transcode into
+     * @param key Content key
+     * @return The folder
+     */
+    public File createTemporaryFolder(String key) {
+        File folder = new File(root, TEMPORARY_PREFIX + key + "-" + UUID.randomUUID());
+        folder.mkdirs();
+        return folder;
+    }
+
+    /**
+     * Scan the transcoded segments, write the manifest, and atomically move the temporary folder into place
+     * @param key Content key
+     * @param temporaryFolder Folder the segments have been written into
+     * @param source Name of the source (For information only)
+     * @param parameters Encoding parameters
+     * @return The committed entry
+     * @throws IOException If the segments are invalid, or the folder couldn't be moved
+     */
+    public CacheEntry commit(String key, File temporaryFolder, String source, String parameters) throws IOException {
+        File[] files = temporaryFolder.listFiles((dir, name) -> name.endsWith(".aac"));
+        if (files == null || files.length == 0) throw new IOException("No segments were produced");
+        Arrays.sort(files, Comparator.comparingInt(TrackCache::extractNumber));
+        CacheManifest manifest = new CacheManifest();
+        manifest.source = source;
+        manifest.parameters = parameters;
+        manifest.created = System.currentTimeMillis();
+        for (File file : files) {
+            CacheManifest.Segment segment = scan(file);
+            manifest.frames += segment.frames;
+            manifest.durationMillis += segment.durationMillis;
+            manifest.segments.add(segment);
+        }
+        if (manifest.frames == 0) throw new IOException("Transcoded track contains no audio");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(temporaryFolder, MANIFEST)), StandardCharsets.UTF_8)) {
+            gson.toJson(manifest, writer);
+        }
+        File folder = new File(root, key);
+        if (folder.exists()) delete(folder); // Damaged leftover of the same content
+        try {
+            Files.move(temporaryFolder.toPath(), folder.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFolder.toPath(), folder.toPath());
+        }
+        CacheEntry entry = new CacheEntry(key, folder, manifest, System.currentTimeMillis());
+        entries.put(key, entry);
+        evict();
+        return entry;
+    }
+
+    private static CacheManifest.Segment scan(File file) throws IOException {
+        CacheManifest.Segment segment = new CacheManifest.Segment();
+        segment.file = file.getName();
+        segment.bytes = file.length();
+        long durationNanos = 0;
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+            AdtsFrameReader reader = new AdtsFrameReader(inputStream);
+            byte[] frame = new byte[AdtsFrameReader.MAX_FRAME_SIZE];
+            while (reader.readFrame(frame) != -1) {
+                segment.frames++;
+                durationNanos += reader.getHeader().getDurationNanos();
+            }
+        }
+        segment.durationMillis = durationNanos / 1_000_000L;
+        return segment;
+    }
+
+    /**
+     * Delete the least recently used entries until the cache fits into the configured size. Entries that are
+     * being played are never evicted
+     */
+    public synchronized void evict() {
+        long maxSize = radio.getConfigsManager().getConfig().cacheMaxBytes;
+        long size = getSize();
+        if (size <= maxSize) return;
+        List<CacheEntry> candidates = new ArrayList<>(entries.values());
+        candidates.sort(Comparator.comparingLong(CacheEntry::getLastAccess));
+        for (CacheEntry entry : candidates) {
+            if (size <= maxSize) break;
+            if (entry.isRetained()) continue;
+            entries.remove(entry.getKey());
+            delete(entry.getFolder());
+            size -= entry.getSize();
+            radio.getLogger().info(String.format("Evicted cache entry %s (%s)", entry.getKey(), entry.getManifest().source));
+        }
+    }
+
+    /**
+     * Save everything that hasn't been saved yet
+     */
+    public void flush() {
+        saveSources(true);
+    }
+
+    /**
+     * Get the total size of all entries
+     * @return Size in bytes
+     */
+    public long getSize() {
+        long size = 0;
+        for (CacheEntry entry : entries.values()) {
+            size += entry.getSize();
+        }
+        return size;
+    }
+
+    private CacheEntry load(File folder) {
+        File manifestFile = new File(folder, MANIFEST);
+        if (!manifestFile.isFile()) return null;
+        try (Reader reader = new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8)) {
+            CacheManifest manifest = gson.fromJson(reader, CacheManifest.class);
+            if (manifest == null || manifest.segments == null || manifest.segments.isEmpty()) return null;
+            CacheEntry entry = new CacheEntry(folder.getName(), folder, manifest, manifestFile.lastModified());
+            if (!isIntact(entry)) {
+                delete(folder);
+                return null;
+            }
+            return entry;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static boolean isIntact(CacheEntry entry) {
+        for (CacheManifest.Segment segment : entry.getManifest().segments) {
+            if (new File(entry.getFolder(), segment.file).length() != segment.bytes) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Save the source hash index. Throttled unless forced, since it's updated once per hashed file
+     */
+    private synchronized void saveSources(boolean force) {
+        if (!force && System.currentTimeMillis() - lastSourcesSave < 5000) return;
+        lastSourcesSave = System.currentTimeMillis();
+        File file = new File(root, SOURCES);
+        File temporary = new File(root, SOURCES + ".tmp");
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), StandardCharsets.UTF_8)) {
+                gson.toJson(new HashMap<>(sourceHashes), writer);
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            radio.getLogger().warn("Failed to save cache source index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Delete a folder and everything in it
+     * @param folder The folder
+     */
+    static void delete(File folder) {
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    delete(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        folder.delete();
+    }
+
+    private static int extractNumber(File file) {
+        try {
+            return Integer.parseInt(file.getName().split("_")[0]);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private static class SourceHash {
+
+        @Expose
+        public long size = 0;
+
+        @Expose
+        public long modified = 0;
+
+        @Expose
+        public String hash = "";
+
+    }
+}
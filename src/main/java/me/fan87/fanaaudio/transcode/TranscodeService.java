@@ -0,0 +1,335 @@
+package me.fan87.fanaaudio.transcode;
+
+import me.fan87.fanaaudio.FANARadio;
+import me.fan87.fanaaudio.station.AudioStation;
+import me.fan87.fanaaudio.station.Rendition;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Transcodes tracks into the cache in the background, on a bounded pool of workers shared by all stations.
+ * Tracks that are about to be played jump the queue. Every rendition of a track is encoded by the same ffmpeg
+ * process, so the source is only decoded once.
+ */
+public class TranscodeService {
+
+    public enum Priority {
+        /**
+         * The station is waiting for this track right now
+         */
+        URGENT,
+        /**
+         * The track is coming up soon in the playlist
+         */
+        LOOKAHEAD,
+        /**
+         * Everything else in the library
+         */
+        BACKGROUND
+    }
+
+    private final FANARadio radio;
+    private final TrackCache cache;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<List<CacheEntry>>> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, Progress> progress = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder transcodes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public TranscodeService(FANARadio radio, int threads) {
+        this.radio = radio;
+        this.cache = new TrackCache(radio);
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), (runnable) -> {
+            Thread thread = new Thread(runnable, "Transcode Thread #" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        this.executor.prestartAllCoreThreads(); // Every job goes through the priority queue
+    }
+
+    /**
+     * Request a track to be transcoded. If it's already queued, it's moved up if the new priority is higher
+     * @param station Station the track belongs to
+     * @param track Source file of the track
+     * @param priority How soon it's needed
+     * @return Future of the cache entries, one per rendition of the station (In the same order)
+     */
+    public CompletableFuture<List<CacheEntry>> submit(AudioStation station, File track, Priority priority) {
+        List<Rendition> renditions = station.getRenditions();
+        StringBuilder parameters = new StringBuilder();
+        for (Rendition rendition : renditions) {
+            parameters.append('|').append(rendition.getParameters());
+        }
+        String source = station.namespace + "|" + track.getAbsolutePath() + "|" + track.length() + "|" + track.lastModified() + parameters; // A modified file is a new job
+        Job job = jobs.get(source);
+        if (job != null && job.future.isDone() && !job.future.isCompletedExceptionally() && !isCached(job.future.join())) {
+            jobs.remove(source, job); // Evicted since, transcode again
+            progress.get(station.namespace).done.decrementAndGet();
+            progress.get(station.namespace).total.decrementAndGet();
+        }
+        job = jobs.computeIfAbsent(source, (key) -> {
+            Job created = new Job(station, track, renditions, source);
+            progress.computeIfAbsent(station.namespace, (namespace) -> new Progress()).total.incrementAndGet();
+            return created;
+        });
+        if (!job.future.isDone() && job.raisePriority(priority)) {
+            executor.execute(new QueueEntry(job, priority, sequence.getAndIncrement()));
+        }
+        return job.future;
+    }
+
+    private boolean isCached(List<CacheEntry> entries) {
+        for (CacheEntry entry : entries) {
+            if (!cache.isCached(entry)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Cancel every unfinished transcode of a station. Running ffmpeg processes are killed
+     * @param station The station
+     */
+    public void cancel(AudioStation station) {
+        for (Job job : jobs.values()) {
+            if (job.station != station || job.future.isDone()) continue;
+            if (jobs.remove(job.source, job)) {
+                progress.get(station.namespace).total.decrementAndGet();
+            }
+            job.future.completeExceptionally(new CancellationException("Station has stopped"));
+            Process process = job.process;
+            if (process != null) process.destroyForcibly();
+        }
+    }
+
+    /**
+     * Forget the transcodes of a track that has been removed or changed. Unfinished ones are cancelled, and it no
+     * longer counts towards the progress of the station. Cache entries are kept, they're evicted as usual
+     * @param station The station
+     * @param track Source file of the track
+     */
+    public void forget(AudioStation station, File track) {
+        for (Job job : jobs.values()) {
+            if (job.station != station || !job.track.equals(track)) continue;
+            if (!jobs.remove(job.source, job)) continue;
+            Progress stationProgress = progress.get(station.namespace);
+            stationProgress.total.decrementAndGet();
+            if (job.future.isDone() && !job.future.isCompletedExceptionally()) {
+                stationProgress.done.decrementAndGet();
+                continue;
+            }
+            job.future.completeExceptionally(new CancellationException("Track has been removed or changed"));
+            Process process = job.process;
+            if (process != null) process.destroyForcibly();
+        }
+    }
+
+    /**
+     * Get how many tracks of the station have been transcoded
+     * @param station The station
+     * @return Transcoded tracks and total tracks, as {done, total}
+     */
+    public int[] getProgress(AudioStation station) {
+        Progress stationProgress = progress.get(station.namespace);
+        if (stationProgress == null) return new int[] {0, 0};
+        return new int[] {stationProgress.done.get(), stationProgress.total.get()};
+    }
+
+    /**
+     * Get the amount of transcodes waiting for a worker
+     * @return Queue length
+     */
+    public int getQueueLength() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Get the amount of ffmpeg processes that have been started
+     * @return Transcode count
+     */
+    public long getTranscodeCount() {
+        return transcodes.sum();
+    }
+
+    /**
+     * Get the amount of tracks that couldn't be prepared
+     * @return Failure count
+     */
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * Get the transcode cache
+     * @return The cache
+     */
+    public TrackCache getCache() {
+        return cache;
+    }
+
+    private void transcode(Job job) {
+        try {
+            List<CacheEntry> entries = new ArrayList<>();
+            List<Rendition> missing = new ArrayList<>();
+            List<String> missingKeys = new ArrayList<>();
+            for (Rendition rendition : job.renditions) {
+                String key = cache.computeKey(job.track, rendition.getParameters());
+                CacheEntry entry = cache.get(key);
+                entries.add(entry);
+                if (entry == null) {
+                    missing.add(rendition);
+                    missingKeys.add(key);
+                }
+            }
+            if (!missing.isEmpty()) {
+                String flightKey = String.join("+", missingKeys);
+                List<CacheEntry> created;
+                CompletableFuture<List<CacheEntry>> owned = new CompletableFuture<>();
+                CompletableFuture<List<CacheEntry>> existing = inFlight.putIfAbsent(flightKey, owned);
+                if (existing != null) {
+                    created = existing.get(); // Same content is being transcoded for another station
+                } else {
+                    try {
+                        created = transcode(job, missing, missingKeys);
+                        owned.complete(created);
+                    } catch (Exception e) {
+                        owned.completeExceptionally(e);
+                        throw e;
+                    } finally {
+                        inFlight.remove(flightKey);
+                    }
+                }
+                for (int i = 0, j = 0; i < entries.size(); i++) {
+                    if (entries.get(i) == null) entries.set(i, created.get(j++));
+                }
+            }
+            if (job.future.isDone()) return; // Cancelled while transcoding
+            Progress stationProgress = progress.get(job.station.namespace);
+            int done = stationProgress.done.incrementAndGet();
+            radio.getLogger().info(String.format("[%s]  Prepared Track: %s (%s/%s)", job.station.namespace, job.track.getName(), done, stationProgress.total.get()));
+            job.future.complete(entries);
+        } catch (Exception e) {
+            if (job.future.isDone()) return; // Cancelled, ffmpeg has been killed
+            failures.increment();
+            radio.getLogger().error(String.format("[%s]  Failed to prepare track %s: %s", job.station.namespace, job.track.getName(), e.getMessage()));
+            if (jobs.remove(job.source, job)) { // Allow retrying later
+                progress.get(job.station.namespace).total.decrementAndGet();
+            }
+            job.future.completeExceptionally(e);
+        }
+        if (executor.getQueue().isEmpty()) {
+            cache.flush();
+        }
+    }
+
+    private List<CacheEntry> transcode(Job job, List<Rendition> renditions, List<String> keys) throws IOException, InterruptedException {
+        radio.getLogger().info("Preparing Track: " + job.track.getName() + "!");
+        List<File> folders = new ArrayList<>();
+        try {
+            List<String> command = new ArrayList<>(Arrays.asList("ffmpeg", "-nostats", "-loglevel", "error", "-i", String.format("%s", job.track.getAbsolutePath())));
+            for (int i = 0; i < renditions.size(); i++) { // One output per rendition, all fed by the same decoder
+                File folder = cache.createTemporaryFolder(keys.get(i));
+                folders.add(folder);
+                command.addAll(Arrays.asList("-map", "0:a", "-reset_timestamps", "1", "-ac", "2", "-f", "segment", "-segment_time", "300", "-y", "-acodec", "aac", "-sample_rate", "44100", "-write_xing", "0", "-b:a", Integer.toString(renditions.get(i).bitrate), folder.getPath() + "/%03d_out.aac"));
+            }
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectErrorStream(true);
+            Process process = builder.start();
+            job.process = process;
+            transcodes.increment();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (radio.getConfigsManager().getConfig().debug) {
+                    System.out.println(line); // Send ffmpeg output to console for debugging purpose
+                }
+            }
+            if (process.waitFor() != 0) {
+                throw new IOException("FFmpeg exited with code " + process.exitValue());
+            }
+            List<CacheEntry> entries = new ArrayList<>();
+            for (int i = 0; i < renditions.size(); i++) {
+                entries.add(cache.commit(keys.get(i), folders.get(i), job.track.getName(), renditions.get(i).getParameters()));
+            }
+            return entries;
+        } finally {
+            job.process = null;
+            for (File folder : folders) {
+                if (folder.exists()) TrackCache.delete(folder); // Only left if something went wrong
+            }
+        }
+    }
+
+    private static class Progress {
+        private final AtomicInteger done = new AtomicInteger();
+        private final AtomicInteger total = new AtomicInteger();
+    }
+
+    private class Job {
+        private final AudioStation station;
+        private final File track;
+        private final List<Rendition> renditions;
+        private final String source;
+        private final CompletableFuture<List<CacheEntry>> future = new CompletableFuture<>();
+        private final AtomicBoolean started = new AtomicBoolean(false);
+        private Priority priority = null;
+        private volatile Process process = null;
+
+        private Job(AudioStation station, File track, List<Rendition> renditions, String source) {
+            this.station = station;
+            this.track = track;
+            this.renditions = renditions;
+            this.source = source;
+        }
+
+        /**
+         * @return true if the priority is higher than before, and the job should be queued again
+         */
+        private synchronized boolean raisePriority(Priority priority) {
+            if (this.priority != null && this.priority.ordinal() <= priority.ordinal()) return false;
+            this.priority = priority;
+            return true;
+        }
+
+        private void run() {
+            if (started.compareAndSet(false, true) && !future.isDone()) { // Queued multiple times if the priority has been raised, or cancelled
+                transcode(this);
+            }
+        }
+    }
+
+    private static class QueueEntry implements Runnable, Comparable<QueueEntry> {
+        private final Job job;
+        private final Priority priority;
+        private final long sequence;
+
+        private QueueEntry(Job job, Priority priority, long sequence) {
+            this.job = job;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            job.run();
+        }
+
+        @Override
+        public int compareTo(QueueEntry other) {
+            int result = priority.compareTo(other.priority);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+}